@@ -0,0 +1,627 @@
+package nlp.assignments.parsing;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nlp.ling.Tree;
+
+/**
+ * Finds the Viterbi parse of a log-domain BaselineCkyParser with A* search instead of filling the whole chart.  Items
+ * are taken from an agenda in order of their inside score plus an estimate of their outside score, and combined with
+ * the finished items next to them; the search stops as soon as ROOT over the whole sentence is finished.
+ *
+ * The outside estimate of an item is the smaller of two bounds.  The context summary bounds the rules of any tree
+ * around it by a table that only depends on the number of words left and right of its span, plus the best tag score of
+ * each of those words; for contexts longer than the precomputed tables, the rule part is bounded by 0.  The projection
+ * bound is the Viterbi outside score of the item's projection in a coarse grammar whose rules and tags score the best
+ * of the scores they project, from one exhaustive pass over the sentence with the coarse grammar.  Neither bound
+ * underestimates the real outside score, and both are consistent, so the first time an item leaves the agenda its
+ * score is its Viterbi score and the parse is the same one the CKY parser finds.
+ */
+class AStarParser implements Parser {
+
+    /**
+     * A binary max-heap of item ids keyed by priority.  Items are not updated in place: an item whose score improves
+     * is added again, and the stale copies are skipped when they come out.  This is not nlp.util.FastPriorityQueue
+     * because that one holds objects, which would box every item id it is given, and the agenda sees millions of
+     * them per sentence; here items and priorities stay in primitive arrays that the search reuses.
+     */
+    static class Agenda {
+
+        int[] items = new int[1024];
+        double[] priorities = new double[1024];
+        int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int item, double priority) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
+                priorities = Arrays.copyOf(priorities, 2 * size);
+            }
+            int k = size++;
+            while (k > 0) {
+                int parent = (k - 1) / 2;
+                if (priorities[parent] >= priority) {
+                    break;
+                }
+                items[k] = items[parent];
+                priorities[k] = priorities[parent];
+                k = parent;
+            }
+            items[k] = item;
+            priorities[k] = priority;
+        }
+
+        int removeFirst() {
+            int first = items[0];
+            size--;
+            int item = items[size];
+            double priority = priorities[size];
+            int k = 0;
+            while (2 * k + 1 < size) {
+                int child = 2 * k + 1;
+                if (child + 1 < size && priorities[child + 1] > priorities[child]) {
+                    child++;
+                }
+                if (priorities[child] <= priority) {
+                    break;
+                }
+                items[k] = items[child];
+                priorities[k] = priorities[child];
+                k = child;
+            }
+            items[k] = item;
+            priorities[k] = priority;
+            return first;
+        }
+    }
+
+    // Item ids are chart indices times two, plus one for items after the unary pass
+    static final int PRE_UNARY = 0;
+    static final int POST_UNARY = 1;
+
+    final BaselineCkyParser parser;
+    final int root;
+    final int maxEstimateLength;
+
+    // Ids of the binary rules grouped by right child: those for child c are at [offsets[c], offsets[c + 1])
+    final int[] binaryRulesByRightChild;
+    final int[] binaryRulesByRightChildOffsets;
+
+    // insideEstimates[r][state] is the best rule score of a subtree of state over r words, after the unary pass.
+    // (pre)outsideEstimates[contextIndex(left, right) * numStates + state] is the best rule score of a tree around an
+    // item of state with left and right words next to it, before and after the unary pass
+    final double[][] insideEstimates;
+    final double[] outsideEstimates;
+    final double[] preUnaryOutsideEstimates;
+
+    // The coarse parser of the projection bound, and the coarse state of every state. The coarse grammar keeps the
+    // last PROJECTION_ORDER symbols of the Markov history of intermediate symbols: with less history the bound lets
+    // several times more items through, and with more the exhaustive coarse pass costs nearly as much as the parser's
+    static final int PROJECTION_ORDER = 2;
+    final BaselineCkyParser coarseParser;
+    final int[] coarseStates;
+    final int coarseRoot;
+
+    final AtomicLong numEdges = new AtomicLong();
+
+    // Every thread reuses its search for the sentences it parses, like the parser reuses its chart, and only replaces
+    // it by a larger one when a longer sentence comes along
+    final ThreadLocal<Search> searches = new ThreadLocal<Search>();
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        BaselineCkyParser.Chart chart = search(sentence);
+        if (chart == null) {
+            // the grammar has no parse with ROOT on top, so let the CKY parser make something up
+            return parser.getBestParse(sentence);
+        }
+        return parser.annotator.unAnnotateTree(parser.traverseBackPointers(sentence, chart));
+    }
+
+    /**
+     * Returns the number of items built since the last call, by the search and by the coarse passes.
+     */
+    public long getAndResetNumEdges() {
+        return numEdges.getAndSet(0) + coarseParser.getAndResetNumEdges();
+    }
+
+    public double getLogScore(Tree<String> annotatedTree) {
+        return parser.getLogScore(annotatedTree);
+    }
+
+    static int contextIndex(int left, int right) {
+        int context = left + right;
+        return context * (context + 1) / 2 + left;
+    }
+
+    /**
+     * Runs the search, and returns a chart in which the items of the Viterbi parse have their scores and backpointers,
+     * or null if there is no parse.
+     */
+    BaselineCkyParser.Chart search(List<String> sentence) {
+        if (root < 0) {
+            return null;
+        }
+        Search search = searches.get();
+        if (search == null || search.capacity < sentence.size()) {
+            search = new Search(sentence.size());
+            searches.set(search);
+        }
+        search.start(sentence);
+        boolean found = search.run();
+        numEdges.addAndGet(search.edges);
+        return found ? search.chart : null;
+    }
+
+    /**
+     * The agenda and finished items of the search over one sentence.  The best scores found so far and their
+     * backpointers are kept in a chart of the CKY parser, so that its traversal can read off the parse.  The arrays
+     * have room for sentences of up to capacity words and are reused from one sentence to the next: like the cells of
+     * the chart, the blocks of finished and the rows of the bit sets carry the generation they were last cleared in, and
+     * are only cleared when they are first used for the current sentence.
+     */
+    class Search {
+
+        final int capacity;
+        final int numStates;
+        int length;
+        BaselineCkyParser.Chart chart;
+        int generation = 0;
+
+        // finished[2 * index + layer] is set once the item leaves the agenda. The block of a cell is only valid if its
+        // entry in finishedGenerations is the search's generation
+        final boolean[] finished;
+        final int[] finishedGenerations;
+        final int[] cellStarts;
+        final int[] cellEnds;
+
+        // The finished items after the unary pass as bit sets of length + 1 bits in numWords longs: bit k of the set
+        // of (p, state) in endsByStart is set if (p, k, state) is finished, and bit k in startsByEnd if (k, p, state) is.
+        // The set of row p * numStates + state is empty unless its entry in the generations array is the search's
+        int numWords;
+        final long[] endsByStart;
+        final long[] startsByEnd;
+        final int[] endsByStartGenerations;
+        final int[] startsByEndGenerations;
+
+        // wordEstimates[k] is the sum of the best tag scores of the first k words
+        final double[] wordEstimates;
+
+        // The Viterbi outside scores of the coarse items before and after the unary pass, at the cell index of the
+        // chart times the number of coarse states plus the coarse state
+        final int numCoarseStates;
+        final double[] coarsePreUnaryOutside;
+        final double[] coarseOutside;
+        final Agenda agenda = new Agenda();
+        long edges;
+
+        Search(int capacity) {
+            this.capacity = capacity;
+            numStates = parser.stateIndexer.size();
+            final int numCells = capacity * (capacity + 1) / 2;
+            finished = new boolean[2 * numCells * numStates];
+            finishedGenerations = new int[numCells];
+            cellStarts = new int[numCells];
+            cellEnds = new int[numCells];
+            final int numRows = (capacity + 1) * numStates;
+            endsByStart = new long[numRows * (capacity / 64 + 1)];
+            startsByEnd = new long[numRows * (capacity / 64 + 1)];
+            endsByStartGenerations = new int[numRows];
+            startsByEndGenerations = new int[numRows];
+            wordEstimates = new double[capacity + 1];
+            numCoarseStates = coarseParser.stateIndexer.size();
+            coarsePreUnaryOutside = new double[numCells * numCoarseStates];
+            coarseOutside = new double[numCells * numCoarseStates];
+        }
+
+        /**
+         * Starts over with an empty agenda for the sentence, which must not be longer than the capacity, and puts its
+         * tags on the agenda.
+         */
+        void start(List<String> sentence) {
+            length = sentence.size();
+            generation++;
+            edges = 0;
+            agenda.clear();
+            computeCoarseOutside(coarseParser.buildChart(sentence, null));
+            chart = parser.newChart(sentence, null);
+            for (int i = 0; i < length; i++) {
+                for (int j = i + 1; j <= length; j++) {
+                    cellStarts[chart.cellIndex(i, j)] = i;
+                    cellEnds[chart.cellIndex(i, j)] = j;
+                }
+            }
+            numWords = length / 64 + 1;
+
+            for (int k = 0; k < length; k++) {
+                int best = chart.getBestState(k, k + 1);
+                wordEstimates[k + 1] = wordEstimates[k]
+                        + (best < 0 ? Double.NEGATIVE_INFINITY : chart.get(k, k + 1, best));
+            }
+
+            // The tags newChart put into the chart become the first items before the unary pass
+            for (int k = 0; k < length; k++) {
+                final int offset = chart.cellOffset(k, k + 1);
+                for (int state = 0; state < numStates; state++) {
+                    final double score = chart.scores[offset + state];
+                    if (score != Double.NEGATIVE_INFINITY) {
+                        chart.scores[offset + state] = Double.NEGATIVE_INFINITY;
+                        add(PRE_UNARY, state, k, k + 1, score, -1, -1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Computes the Viterbi outside scores of the coarse chart from its inside scores, by decreasing span, visiting
+         * only the states present in each cell like the inside pass. The items that are not part of any coarse parse
+         * get Double.NEGATIVE_INFINITY.
+         */
+        void computeCoarseOutside(BaselineCkyParser.Chart coarseChart) {
+            final Grammar grammar = coarseParser.grammar;
+            final int[] binaryRuleParents = grammar.binaryRuleParents;
+            final int[] binaryRuleRightChildren = grammar.binaryRuleRightChildren;
+            final int[] binaryRulesByLeftChildOffsets = grammar.binaryRulesByLeftChildOffsets;
+            final double[] binaryRuleScores = coarseParser.binaryRuleScores;
+            final int[] closedRuleParents = coarseParser.unaryClosure.closedRuleParents;
+            final double[] closedRuleScores = coarseParser.closedRuleScores;
+            final int[] closedRulesByChild = coarseParser.unaryClosure.closedRulesByChild;
+            final int[] closedRulesByChildOffsets = coarseParser.unaryClosure.closedRulesByChildOffsets;
+            final double[] insideScores = coarseChart.scores;
+            final double[] preUnaryInsideScores = coarseChart.preUnaryScores;
+            final int[] cellStates = coarseChart.cellStates;
+            final double[] coarseOutside = this.coarseOutside;
+            final double[] coarsePreUnaryOutside = this.coarsePreUnaryOutside;
+
+            final int size = length * (length + 1) / 2 * numCoarseStates;
+            Arrays.fill(coarseOutside, 0, size, Double.NEGATIVE_INFINITY);
+            Arrays.fill(coarsePreUnaryOutside, 0, size, Double.NEGATIVE_INFINITY);
+            if (coarseRoot < 0 || coarseChart.get(0, length, coarseRoot) == Double.NEGATIVE_INFINITY) {
+                return;
+            }
+            coarseOutside[coarseChart.cellOffset(0, length) + coarseRoot] = 0.0;
+            for (int span = length; span >= 1; span--) {
+                for (int i = 0; i + span <= length; i++) {
+                    final int j = i + span;
+                    final int offset = coarseChart.cellOffset(i, j);
+
+                    // Unary pass: an item before it stays itself, or becomes any of its closed parents
+                    final int numStates = coarseChart.numCellStates[coarseChart.cellIndex(i, j)];
+                    for (int k = 0; k < numStates; k++) {
+                        final int child = cellStates[offset + k];
+                        if (preUnaryInsideScores[offset + child] == Double.NEGATIVE_INFINITY) {
+                            continue;
+                        }
+                        double score = coarseOutside[offset + child];
+                        for (int c = closedRulesByChildOffsets[child]; c < closedRulesByChildOffsets[child + 1]; c++) {
+                            final int rule = closedRulesByChild[c];
+                            score = Math.max(score, coarseOutside[offset + closedRuleParents[rule]] + closedRuleScores[rule]);
+                        }
+                        coarsePreUnaryOutside[offset + child] = score;
+                    }
+
+                    // Binary pass: the outside score of a parent goes to both children of every rule and split point
+                    // that builds it
+                    for (int mid = i + 1; mid < j; mid++) {
+                        final int leftOffset = coarseChart.cellOffset(i, mid);
+                        final int rightOffset = coarseChart.cellOffset(mid, j);
+                        final int numLeftChildren = coarseChart.numCellStates[coarseChart.cellIndex(i, mid)];
+                        for (int k = 0; k < numLeftChildren; k++) {
+                            final int leftChild = cellStates[leftOffset + k];
+                            final double leftScore = insideScores[leftOffset + leftChild];
+                            double leftOutside = coarseOutside[leftOffset + leftChild];
+                            final int end = binaryRulesByLeftChildOffsets[leftChild + 1];
+                            for (int rule = binaryRulesByLeftChildOffsets[leftChild]; rule < end; rule++) {
+                                final double parentScore = coarsePreUnaryOutside[offset + binaryRuleParents[rule]];
+                                final int right = rightOffset + binaryRuleRightChildren[rule];
+                                if (parentScore == Double.NEGATIVE_INFINITY
+                                        || insideScores[right] == Double.NEGATIVE_INFINITY) {
+                                    continue;
+                                }
+                                final double score = parentScore + binaryRuleScores[rule];
+                                leftOutside = Math.max(leftOutside, score + insideScores[right]);
+                                coarseOutside[right] = Math.max(coarseOutside[right], score + leftScore);
+                            }
+                            coarseOutside[leftOffset + leftChild] = leftOutside;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Clears the finished items of the cell if it has not been used since the search started over.
+         */
+        void openCell(int i, int j) {
+            chart.openCell(i, j);
+            final int cellIndex = chart.cellIndex(i, j);
+            if (finishedGenerations[cellIndex] != generation) {
+                finishedGenerations[cellIndex] = generation;
+                Arrays.fill(finished, 2 * cellIndex * numStates, 2 * (cellIndex + 1) * numStates, false);
+            }
+        }
+
+        /**
+         * Sets bit k in the given row of the bit sets, clearing the row first if it has not been used since the search
+         * started over.
+         */
+        void setBit(long[] bitSets, int[] generations, int row, int k) {
+            if (generations[row] != generation) {
+                generations[row] = generation;
+                Arrays.fill(bitSets, row * numWords, (row + 1) * numWords, 0L);
+            }
+            bitSets[row * numWords + (k >> 6)] |= 1L << k;
+        }
+
+        /**
+         * Puts the item on the agenda, unless it is already finished, it has a better score, or it cannot be part of
+         * a parse.
+         */
+        void add(int layer, int state, int i, int j, double score, int rule, int midPoint) {
+            openCell(i, j);
+            final int index = chart.cellOffset(i, j) + state;
+            final double[] scores = (layer == PRE_UNARY ? chart.preUnaryScores : chart.scores);
+            if (finished[2 * index + layer] || score <= scores[index]) {
+                return;
+            }
+            final double estimate = getOutsideEstimate(layer, state, i, j);
+            if (estimate == Double.NEGATIVE_INFINITY) {
+                return;
+            }
+            if (scores[index] == Double.NEGATIVE_INFINITY) {
+                edges++;
+            }
+            scores[index] = score;
+            if (layer == PRE_UNARY) {
+                chart.setBinaryBackPointer(index, rule, midPoint);
+            } else {
+                chart.setUnaryBackPointer(index, rule);
+            }
+            agenda.add(2 * index + layer, score + estimate);
+        }
+
+        double getOutsideEstimate(int layer, int state, int i, int j) {
+            final int coarseIndex = chart.cellIndex(i, j) * numCoarseStates + coarseStates[state];
+            final double projection = (layer == PRE_UNARY ? coarsePreUnaryOutside : coarseOutside)[coarseIndex];
+            final double words = wordEstimates[i] + wordEstimates[length] - wordEstimates[j];
+            if (i + length - j >= maxEstimateLength) {
+                return Math.min(projection, words);
+            }
+            final int index = contextIndex(i, length - j) * numStates + state;
+            return Math.min(projection, (layer == PRE_UNARY ? preUnaryOutsideEstimates[index] : outsideEstimates[index]) + words);
+        }
+
+        /**
+         * Takes items off the agenda until ROOT over the whole sentence is finished, and returns whether it was.
+         */
+        boolean run() {
+            final int[] binaryRuleParents = parser.grammar.binaryRuleParents;
+            final int[] binaryRuleLeftChildren = parser.grammar.binaryRuleLeftChildren;
+            final int[] binaryRuleRightChildren = parser.grammar.binaryRuleRightChildren;
+            final double[] binaryRuleScores = parser.binaryRuleScores;
+            final int[] binaryRulesByLeftChildOffsets = parser.grammar.binaryRulesByLeftChildOffsets;
+            final int[] closedRuleParents = parser.unaryClosure.closedRuleParents;
+            final double[] closedRuleScores = parser.closedRuleScores;
+            final int[] closedRulesByChild = parser.unaryClosure.closedRulesByChild;
+            final int[] closedRulesByChildOffsets = parser.unaryClosure.closedRulesByChildOffsets;
+            final double[] scores = chart.scores;
+
+            final int goal = 2 * (chart.cellOffset(0, length) + root) + POST_UNARY;
+            while (!agenda.isEmpty()) {
+                final int item = agenda.removeFirst();
+                if (finished[item]) {
+                    continue;
+                }
+                finished[item] = true;
+                if (item == goal) {
+                    return true;
+                }
+                final int index = item >> 1;
+                final int cellIndex = index / numStates;
+                final int state = index - cellIndex * numStates;
+                final int i = cellStarts[cellIndex];
+                final int j = cellEnds[cellIndex];
+
+                if ((item & 1) == PRE_UNARY) {
+                    // Unary pass: the item stays itself, or becomes any of its closed parents
+                    final double score = chart.preUnaryScores[index];
+                    add(POST_UNARY, state, i, j, score, -1, -1);
+                    for (int k = closedRulesByChildOffsets[state]; k < closedRulesByChildOffsets[state + 1]; k++) {
+                        final int rule = closedRulesByChild[k];
+                        add(POST_UNARY, closedRuleParents[rule], i, j, score + closedRuleScores[rule], rule, -1);
+                    }
+                    continue;
+                }
+
+                // Binary pass: the item is the left child of rules whose right child is finished right after it, and
+                // the right child of rules whose left child is finished right before it
+                final double score = scores[index];
+                setBit(endsByStart, endsByStartGenerations, i * numStates + state, j);
+                setBit(startsByEnd, startsByEndGenerations, j * numStates + state, i);
+                for (int rule = binaryRulesByLeftChildOffsets[state]; rule < binaryRulesByLeftChildOffsets[state + 1]; rule++) {
+                    final int rightChild = binaryRuleRightChildren[rule];
+                    if (endsByStartGenerations[j * numStates + rightChild] != generation) {
+                        continue;
+                    }
+                    final int words = (j * numStates + rightChild) * numWords;
+                    for (int w = 0; w < numWords; w++) {
+                        for (long bits = endsByStart[words + w]; bits != 0; bits &= bits - 1) {
+                            final int max = 64 * w + Long.numberOfTrailingZeros(bits);
+                            final double rightScore = scores[chart.cellOffset(j, max) + rightChild];
+                            add(PRE_UNARY, binaryRuleParents[rule], i, max, score + rightScore + binaryRuleScores[rule],
+                                    rule, j);
+                        }
+                    }
+                }
+                for (int k = binaryRulesByRightChildOffsets[state]; k < binaryRulesByRightChildOffsets[state + 1]; k++) {
+                    final int rule = binaryRulesByRightChild[k];
+                    final int leftChild = binaryRuleLeftChildren[rule];
+                    if (startsByEndGenerations[i * numStates + leftChild] != generation) {
+                        continue;
+                    }
+                    final int words = (i * numStates + leftChild) * numWords;
+                    for (int w = 0; w < numWords; w++) {
+                        for (long bits = startsByEnd[words + w]; bits != 0; bits &= bits - 1) {
+                            final int min = 64 * w + Long.numberOfTrailingZeros(bits);
+                            final double leftScore = scores[chart.cellOffset(min, i) + leftChild];
+                            add(PRE_UNARY, binaryRuleParents[rule], min, j, leftScore + score + binaryRuleScores[rule],
+                                    rule, i);
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Precomputes the outside estimates for all contexts of less than maxEstimateLength words, and projects the
+     * parser's grammar for the projection bound.
+     */
+    public AStarParser(BaselineCkyParser parser, int maxEstimateLength) {
+        if (!parser.logDomain) {
+            throw new IllegalArgumentException("A* search needs a log-domain parser");
+        }
+        this.parser = parser;
+        this.root = parser.stateIndexer.indexOf("ROOT");
+        this.maxEstimateLength = maxEstimateLength;
+
+        final int numStates = parser.stateIndexer.size();
+        LabelProjection projection = new CoarseToFineParser.MarkovHistoryTruncation(PROJECTION_ORDER);
+        coarseParser = new BaselineCkyParser(parser, projection, true, true);
+        coarseRoot = coarseParser.stateIndexer.indexOf("ROOT");
+        coarseStates = new int[numStates];
+        for (int state = 0; state < numStates; state++) {
+            coarseStates[state] = coarseParser.stateIndexer.indexOf(projection.project(parser.stateIndexer.get(state)));
+        }
+        binaryRulesByRightChildOffsets = new int[numStates + 1];
+        binaryRulesByRightChild = Grammar.groupByKey(parser.grammar.binaryRuleRightChildren, null,
+                binaryRulesByRightChildOffsets);
+
+        System.out.print("Computing A* estimates ... ");
+        insideEstimates = computeInsideEstimates();
+        final int size = contextIndex(0, maxEstimateLength) * numStates;
+        outsideEstimates = new double[size];
+        preUnaryOutsideEstimates = new double[size];
+        computeOutsideEstimates();
+        System.out.println("done.");
+    }
+
+    private double[][] computeInsideEstimates() {
+        final int numStates = parser.stateIndexer.size();
+        final int[] binaryRuleParents = parser.grammar.binaryRuleParents;
+        final int[] binaryRuleLeftChildren = parser.grammar.binaryRuleLeftChildren;
+        final int[] binaryRuleRightChildren = parser.grammar.binaryRuleRightChildren;
+        final double[] binaryRuleScores = parser.binaryRuleScores;
+
+        double[][] estimates = new double[maxEstimateLength][];
+        for (int span = 1; span < maxEstimateLength; span++) {
+            double[] preUnaryEstimates = new double[numStates];
+            Arrays.fill(preUnaryEstimates, Double.NEGATIVE_INFINITY);
+            if (span == 1) {
+                for (int tag : parser.tagIds) {
+                    preUnaryEstimates[tag] = 0.0;
+                }
+            }
+            for (int rule = 0; rule < binaryRuleParents.length; rule++) {
+                final int parent = binaryRuleParents[rule];
+                for (int leftSpan = 1; leftSpan < span; leftSpan++) {
+                    final double score = binaryRuleScores[rule] + estimates[leftSpan][binaryRuleLeftChildren[rule]]
+                            + estimates[span - leftSpan][binaryRuleRightChildren[rule]];
+                    if (score > preUnaryEstimates[parent]) {
+                        preUnaryEstimates[parent] = score;
+                    }
+                }
+            }
+            estimates[span] = applyUnaries(preUnaryEstimates);
+        }
+        return estimates;
+    }
+
+    /**
+     * Returns the best score of every state after the unary pass, given the best scores before it.
+     */
+    private double[] applyUnaries(double[] preUnaryEstimates) {
+        final int[] closedRuleParents = parser.unaryClosure.closedRuleParents;
+        final double[] closedRuleScores = parser.closedRuleScores;
+        final int[] closedRulesByChild = parser.unaryClosure.closedRulesByChild;
+        final int[] closedRulesByChildOffsets = parser.unaryClosure.closedRulesByChildOffsets;
+        double[] estimates = preUnaryEstimates.clone();
+        for (int child = 0; child < preUnaryEstimates.length; child++) {
+            if (preUnaryEstimates[child] == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+            for (int k = closedRulesByChildOffsets[child]; k < closedRulesByChildOffsets[child + 1]; k++) {
+                final int rule = closedRulesByChild[k];
+                final int parent = closedRuleParents[rule];
+                estimates[parent] = Math.max(estimates[parent], preUnaryEstimates[child] + closedRuleScores[rule]);
+            }
+        }
+        return estimates;
+    }
+
+    private void computeOutsideEstimates() {
+        final int numStates = parser.stateIndexer.size();
+        final int[] binaryRuleParents = parser.grammar.binaryRuleParents;
+        final int[] binaryRuleLeftChildren = parser.grammar.binaryRuleLeftChildren;
+        final int[] binaryRuleRightChildren = parser.grammar.binaryRuleRightChildren;
+        final double[] binaryRuleScores = parser.binaryRuleScores;
+        final int[] closedRuleParents = parser.unaryClosure.closedRuleParents;
+        final double[] closedRuleScores = parser.closedRuleScores;
+        final int[] closedRulesByChild = parser.unaryClosure.closedRulesByChild;
+        final int[] closedRulesByChildOffsets = parser.unaryClosure.closedRulesByChildOffsets;
+        Arrays.fill(outsideEstimates, Double.NEGATIVE_INFINITY);
+        Arrays.fill(preUnaryOutsideEstimates, Double.NEGATIVE_INFINITY);
+
+        // Contexts are filled by increasing size, since the parent of an item always has a smaller context
+        for (int context = 0; context < maxEstimateLength; context++) {
+            for (int left = 0; left <= context; left++) {
+                final int right = context - left;
+                final int offset = contextIndex(left, right) * numStates;
+                if (context == 0 && root >= 0) {
+                    outsideEstimates[offset + root] = 0.0;
+                }
+
+                // Binary pass: the item is the left child of a parent that also covers rightSpan words to its right,
+                // or the right child of one that covers leftSpan words to its left
+                for (int rule = 0; rule < binaryRuleParents.length; rule++) {
+                    final int parent = binaryRuleParents[rule];
+                    final int leftChild = binaryRuleLeftChildren[rule];
+                    final int rightChild = binaryRuleRightChildren[rule];
+                    for (int rightSpan = 1; rightSpan <= right; rightSpan++) {
+                        final double score = preUnaryOutsideEstimates[contextIndex(left, right - rightSpan) * numStates
+                                + parent] + binaryRuleScores[rule] + insideEstimates[rightSpan][rightChild];
+                        if (score > outsideEstimates[offset + leftChild]) {
+                            outsideEstimates[offset + leftChild] = score;
+                        }
+                    }
+                    for (int leftSpan = 1; leftSpan <= left; leftSpan++) {
+                        final double score = preUnaryOutsideEstimates[contextIndex(left - leftSpan, right) * numStates
+                                + parent] + binaryRuleScores[rule] + insideEstimates[leftSpan][leftChild];
+                        if (score > outsideEstimates[offset + rightChild]) {
+                            outsideEstimates[offset + rightChild] = score;
+                        }
+                    }
+                }
+
+                // Unary pass: before the unary pass, an item may stay itself or become any of its closed parents
+                for (int child = 0; child < numStates; child++) {
+                    double score = outsideEstimates[offset + child];
+                    for (int k = closedRulesByChildOffsets[child]; k < closedRulesByChildOffsets[child + 1]; k++) {
+                        final int rule = closedRulesByChild[k];
+                        score = Math.max(score, outsideEstimates[offset + closedRuleParents[rule]] + closedRuleScores[rule]);
+                    }
+                    preUnaryOutsideEstimates[offset + child] = score;
+                }
+            }
+        }
+    }
+}
@@ -1,14 +1,26 @@
 package nlp.assignments.parsing;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import nlp.ling.Tree;
+import nlp.math.DoubleArrays;
 import nlp.util.CounterMap;
+import nlp.util.Indexer;
 
 class BaselineCkyParser implements Parser {
 
@@ -19,171 +31,299 @@ class BaselineCkyParser implements Parser {
 
     Lexicon lexicon;
     Grammar grammar;
+    // The grammar as trained or loaded, which setRuleCompaction compacts into grammar
+    Grammar trainedGrammar;
 
     UnaryClosure unaryClosure;
 
+    Indexer<String> stateIndexer;
+    List<String> tags;
+    int[] tagIds;
+
+    // In the log domain all scores are log probabilities, combined by addition, and absent items score
+    // Double.NEGATIVE_INFINITY instead of 0. This avoids underflow on long sentences.
+    final boolean logDomain;
+    final double emptyScore;
+    double[] binaryRuleScores;
+    double[] closedRuleScores;
+
+    // Sentences of at least minParallelLength words are parsed with the cells of each span filled in parallel on the
+    // cellPool. Without a pool every sentence is parsed sequentially. A diagonal is split into about TASKS_PER_THREAD
+    // ranges of cells per worker, so that a task fills many cells and its cost is not dominated by scheduling
+    static final int TASKS_PER_THREAD = 4;
+    ForkJoinPool cellPool = null;
+    int minParallelLength = Integer.MAX_VALUE;
+
+    // Every completed cell keeps at most beamSize states, and drops the states whose log score is more than
+    // pruningThreshold below the best one in the cell. Pruned states are never used as children. States are ranked by
+    // their figure of merit, their inside score times their prior, which stands in for their outside score: the inside
+    // scores of intermediate states of the binarization leave out the rules that close them, and would push out the
+    // real constituents. ROOT and the states it rewrites to through a closed unary, in rootStates, are always kept,
+    // and the cell over the whole sentence is never pruned.
+    int beamSize = Integer.MAX_VALUE;
+    double pruningThreshold = Double.POSITIVE_INFINITY;
+    double[] statePriors;
+    boolean[] rootStates;
+
+    // With a tag beam, the tagger keeps only the tags of every word whose posterior is within the beam of its best tag,
+    // and buildChart only falls back to all tags of the tag dictionary when ROOT cannot be reached without them
+    HmmTagger tagger;
+    double tagBeam = Double.POSITIVE_INFINITY;
+
+    // Cells of spans where a multi-word constituent is less likely than cellThreshold to begin or end are closed before
+    // parsing, with the same fall back as for the tags
+    CellConstraints cellConstraints;
+    double cellThreshold = 0.0;
+
+    // Number of chart items kept over all parsed sentences
+    final AtomicLong numEdges = new AtomicLong();
+
+    // Every thread reuses its chart for the sentences it parses, and only replaces it by a larger one when a longer
+    // sentence comes along. A chart is therefore only valid until the next call to newChart on the same thread
+    final ThreadLocal<Chart> charts = new ThreadLocal<Chart>();
+
+    // Scratch space for sorting the scores of a cell when it is pruned, kept per thread
+    final ThreadLocal<double[]> pruningBuffers = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[stateIndexer.size()];
+        }
+    };
+
     static class Chart {
 
-        static class EdgeInfo {
-            double score;
-            BinaryRule binaryRule = null;
-            UnaryRule unaryRule = null;
-            int mid = -1;
+        // Scores and backpointers of all (i, j, state) items are stored in flat arrays. The cells (i, j) are laid out
+        // row by row in the upper triangle, and each cell holds a block of numStates entries. The arrays have room for
+        // sentences of up to capacity words, and length is the length of the current sentence.
+        final int capacity;
+        int length;
+        final int numStates;
+        final double emptyScore;
+
+        // scores holds the final score of every item, preUnaryScores its score before the unary pass
+        final double[] scores;
+        final double[] preUnaryScores;
+
+        // Both backpointers of an item are packed into one long: the closed unary rule of the unary pass in the low
+        // RULE_BITS bits, then the binary rule that built the item before it, and the split point in the top bits.
+        // Every field holds its value plus one, so that 0 means no backpointer
+        static final int RULE_BITS = 24;
+        static final long RULE_MASK = (1L << RULE_BITS) - 1;
+        final long[] backPointers;
+
+        // Outside scores of the items before and after the unary pass, only allocated by InsideOutside
+        double[] preUnaryOutsideScores;
+        double[] outsideScores;
+
+        // Restricts the items the chart may contain, or null
+        ProjectedItemMask mask;
+        // The cells that stay empty, indexed like numCellStates, or null
+        boolean[] closedCells;
+
+        // Once a cell is complete, the states it contains are listed at the start of its block in cellStates, and
+        // their number is kept in numCellStates
+        final int[] cellStates;
+        final int[] numCellStates;
+
+        // A cell belongs to the current sentence once its generation is the chart's, and is cleared when it is first
+        // opened for it, so that reusing the chart does not need to clear all of it
+        final int[] cellGenerations;
+        int generation = 0;
+
+        Chart(int capacity, int numStates, double emptyScore) {
+            this.capacity = capacity;
+            this.numStates = numStates;
+            this.emptyScore = emptyScore;
+
+            int size = capacity * (capacity + 1) / 2 * numStates;
+            scores = new double[size];
+            preUnaryScores = new double[size];
+            backPointers = new long[size];
+            cellStates = new int[size];
+            numCellStates = new int[capacity * (capacity + 1) / 2];
+            cellGenerations = new int[capacity * (capacity + 1) / 2];
+        }
 
-            EdgeInfo(double score) {
-                this.score = score;
-            }
+        /**
+         * Starts over with an empty chart for a sentence of the given length, which must not exceed the capacity.
+         */
+        void reset(int length, ProjectedItemMask mask) {
+            this.length = length;
+            this.mask = mask;
+            this.closedCells = null;
+            generation++;
+        }
 
-            @Override
-            public String toString() {
-                if (binaryRule == null && unaryRule == null) {
-                    return Double.toString(score);
-                } else {
-                    return score + ": " + "[ rule = " + (binaryRule != null ? binaryRule : unaryRule) + ", mid = "
-                            + mid + "]";
-                }
+        boolean isClosed(int cellIndex) {
+            return (closedCells != null && closedCells[cellIndex]) || (mask != null && !mask.isOpen(cellIndex));
+        }
 
+        /**
+         * Clears the cell (i, j) if it has not been opened since the last reset.
+         */
+        void openCell(int i, int j) {
+            final int cellIndex = cellIndex(i, j);
+            if (cellGenerations[cellIndex] == generation) {
+                return;
             }
+            cellGenerations[cellIndex] = generation;
+            final int offset = cellIndex * numStates;
+            Arrays.fill(scores, offset, offset + numStates, emptyScore);
+            Arrays.fill(preUnaryScores, offset, offset + numStates, emptyScore);
+            Arrays.fill(backPointers, offset, offset + numStates, 0L);
+            numCellStates[cellIndex] = 0;
         }
 
-        Map<Integer, Map<Integer, Map<String, EdgeInfo>>> chart = new HashMap<Integer, Map<Integer, Map<String, EdgeInfo>>>();
-
-        Chart(int seqLength) {
-            for (int i = 0; i < seqLength; i++) {
-                chart.put(i, new HashMap<Integer, Map<String, EdgeInfo>>());
-                for (int j = i + 1; j <= seqLength; j++) {
-                    chart.get(i).put(j, new HashMap<String, EdgeInfo>());
-                }
-            }
+        int numCells() {
+            return length * (length + 1) / 2;
         }
 
-        void set(int i, int j, String label, double score) {
-            chart.get(i).get(j).put(label, new EdgeInfo(score));
+        /**
+         * Returns the number of entries of the chart arrays the current sentence uses.
+         */
+        int size() {
+            return numCells() * numStates;
         }
 
-        double get(int i, int j, String label) {
-            Map<String, EdgeInfo> edgeScores = chart.get(i).get(j);
-            if (!edgeScores.containsKey(label)) {
-                return 0;
-            } else {
-                return edgeScores.get(label).score;
-            }
+        int cellIndex(int i, int j) {
+            return i * (2 * length - i + 1) / 2 + j - i - 1;
         }
 
-        Set<String> getAllCandidateLabels(int i, int j) {
-            return chart.get(i).get(j).keySet();
+        int cellOffset(int i, int j) {
+            return cellIndex(i, j) * numStates;
         }
 
-        String getBestLabel(int i, int j) {
-            Map<String, EdgeInfo> edgeScores = chart.get(i).get(j);
-            double bestScore = Double.NEGATIVE_INFINITY;
-            String optLabel = null;
-            for (String label : edgeScores.keySet()) {
-                if (bestScore < edgeScores.get(label).score) {
-                    optLabel = label;
-                    bestScore = edgeScores.get(label).score;
+        /**
+         * Records which states are present in the completed cell (i, j), and returns their number.
+         */
+        int collectCellStates(int i, int j) {
+            int offset = cellOffset(i, j);
+            int count = 0;
+            for (int state = 0; state < numStates; state++) {
+                if (scores[offset + state] != emptyScore) {
+                    cellStates[offset + count++] = state;
                 }
             }
-            return optLabel;
+            numCellStates[cellIndex(i, j)] = count;
+            return count;
         }
 
-        void setBackPointer(int i, int j, String label, BinaryRule rule, int midPoint) {
-            EdgeInfo edgeInfo = chart.get(i).get(j).get(label);
-            edgeInfo.binaryRule = rule;
-            edgeInfo.unaryRule = null;
-            edgeInfo.mid = midPoint;
+        void set(int i, int j, int state, double score) {
+            scores[cellOffset(i, j) + state] = score;
         }
 
-        void setBackPointer(int i, int j, String label, UnaryRule rule) {
-            EdgeInfo edgeInfo = chart.get(i).get(j).get(label);
-            edgeInfo.binaryRule = null;
-            edgeInfo.unaryRule = rule;
+        double get(int i, int j, int state) {
+            return scores[cellOffset(i, j) + state];
         }
 
-        int getMidPoint(int i, int j, String label) {
-            return chart.get(i).get(j).get(label).mid;
+        int getBestState(int i, int j) {
+            int offset = cellOffset(i, j);
+            double bestScore = emptyScore;
+            int optState = -1;
+            for (int state = 0; state < numStates; state++) {
+                if (bestScore < scores[offset + state]) {
+                    optState = state;
+                    bestScore = scores[offset + state];
+                }
+            }
+            return optState;
         }
 
-        boolean hasBinaryRule(int i, int j, String label) {
-            return chart.get(i).get(j).get(label).binaryRule != null;
+        void setBackPointer(int i, int j, int state, int binaryRule, int midPoint) {
+            setBinaryBackPointer(cellOffset(i, j) + state, binaryRule, midPoint);
         }
 
-        BinaryRule getBinaryRule(int i, int j, String label) {
-            return chart.get(i).get(j).get(label).binaryRule;
+        void setBackPointer(int i, int j, int state, int unaryRule) {
+            setUnaryBackPointer(cellOffset(i, j) + state, unaryRule);
         }
 
-        UnaryRule getUnaryRule(int i, int j, String label) {
-            return chart.get(i).get(j).get(label).unaryRule;
+        void setBinaryBackPointer(int index, int binaryRule, int midPoint) {
+            backPointers[index] = (backPointers[index] & RULE_MASK) | (long) (midPoint + 1) << (2 * RULE_BITS)
+                    | (long) (binaryRule + 1) << RULE_BITS;
         }
 
-        @Override
-        public String toString() {
-            return chart.toString();
+        void setUnaryBackPointer(int index, int unaryRule) {
+            backPointers[index] = (backPointers[index] & ~RULE_MASK) | (unaryRule + 1);
         }
 
-    }
-
-    void traverseBackPointersHelper(List<String> sent, Chart chart, int i, int j, Tree<String> currTree) {
-        String parent = currTree.getLabel();
-
-        if (j - i > 1) {
-            // Non-preterminal rules
-
-            List<Tree<String>> children;
-
-            if (chart.hasBinaryRule(i, j, parent)) {
-                // If this edge has a binary ryle, traverse both children
-
-                BinaryRule rule = chart.getBinaryRule(i, j, parent);
-                int mid = chart.getMidPoint(i, j, parent);
-                children = new ArrayList<Tree<String>>(2);
-
-                Tree<String> t1 = new Tree<String>(rule.getLeftChild());
-                traverseBackPointersHelper(sent, chart, i, mid, t1);
-                children.add(t1);
-
-                Tree<String> t2 = new Tree<String>(rule.getRightChild());
-                traverseBackPointersHelper(sent, chart, mid, j, t2);
-                children.add(t2);
-
-            } else {
-                // For unary rules, only traverse the single child based on the unary closure path
+        int getMidPoint(int i, int j, int state) {
+            return (int) (backPointers[cellOffset(i, j) + state] >>> (2 * RULE_BITS)) - 1;
+        }
 
-                UnaryRule rule = chart.getUnaryRule(i, j, parent);
-                children = new ArrayList<Tree<String>>(1);
+        int getBinaryRule(int i, int j, int state) {
+            return (int) (backPointers[cellOffset(i, j) + state] >>> RULE_BITS & RULE_MASK) - 1;
+        }
 
-                Tree<String> t = new Tree<String>(rule.getChild());
-                traverseBackPointersHelper(sent, chart, i, j, t);
+        int getUnaryRule(int i, int j, int state) {
+            return (int) (backPointers[cellOffset(i, j) + state] & RULE_MASK) - 1;
+        }
 
-                List<String> path = unaryClosure.getPath(rule);
-                children.add(buildUnaryTree(path.subList(0, path.size() - 1), Collections.singletonList(t)));
+    }
 
+    /**
+     * Allows the items of a chart whose projection onto a coarser grammar is allowed in the coarse chart of the same
+     * sentence.
+     */
+    static class ProjectedItemMask {
+        // projection maps every state to a coarse state, and allowedCoarseItems is indexed like the coarse chart
+        final int[] projection;
+        final int numCoarseStates;
+        final boolean[] allowedCoarseItems;
+        final boolean[] openCells;
+
+        ProjectedItemMask(int[] projection, int numCoarseStates, boolean[] allowedCoarseItems) {
+            this.projection = projection;
+            this.numCoarseStates = numCoarseStates;
+            this.allowedCoarseItems = allowedCoarseItems;
+
+            openCells = new boolean[allowedCoarseItems.length / numCoarseStates];
+            for (int k = 0; k < allowedCoarseItems.length; k++) {
+                if (allowedCoarseItems[k]) {
+                    openCells[k / numCoarseStates] = true;
+                }
             }
+        }
 
-            currTree.setChildren(children);
+        boolean isOpen(int cellIndex) {
+            return openCells[cellIndex];
+        }
 
-        } else {
-            // Preterminal production
-            assert j - i == 1;
+        boolean isAllowed(int cellIndex, int state) {
+            final int coarseState = projection[state];
+            return coarseState < 0 || allowedCoarseItems[cellIndex * numCoarseStates + coarseState];
+        }
+    }
 
-            UnaryRule rule = chart.getUnaryRule(i, j, parent);
-            if (rule != null) {
-                // If we have a unary rule at the preterminal node, follow its closed path
-                List<Tree<String>> children = new ArrayList<Tree<String>>(1);
+    Tree<String> traverseBackPointersHelper(List<String> sent, Chart chart, int i, int j, int state) {
+        int unaryRule = chart.getUnaryRule(i, j, state);
+        if (unaryRule < 0) {
+            return traverseBinaryBackPointers(sent, chart, i, j, state);
+        }
 
-                List<Tree<String>> emptyList = Collections.emptyList();
-                Tree<String> leaf = new Tree<String>(sent.get(i), emptyList);
-                children.add(buildUnaryTree(unaryClosure.getPath(rule), Collections.singletonList(leaf)));
+        // For unary rules, only traverse the single child based on the unary closure path. The child's own
+        // backpointers describe how it was built before the unary pass, so never follow another unary rule there
+        Tree<String> t = traverseBinaryBackPointers(sent, chart, i, j, unaryClosure.closedRuleChildren[unaryRule]);
 
-                currTree.setChildren(children);
+        List<String> path = unaryClosure.getPath(unaryRule);
+        return buildUnaryTree(path.subList(0, path.size() - 1), Collections.singletonList(t));
+    }
 
-            } else {
-                // Without any rule left at the preterminal node, add the actual word
-                Tree<String> termProd = new Tree<String>(sent.get(i));
-                currTree.setChildren(Collections.singletonList(termProd));
-            }
+    Tree<String> traverseBinaryBackPointers(List<String> sent, Chart chart, int i, int j, int state) {
+        String label = stateIndexer.get(state);
+
+        if (j - i == 1) {
+            // Preterminal production, add the actual word
+            Tree<String> termProd = new Tree<String>(sent.get(i));
+            return new Tree<String>(label, Collections.singletonList(termProd));
         }
 
+        // If this edge has a binary rule, traverse both children
+        int rule = chart.getBinaryRule(i, j, state);
+        int mid = chart.getMidPoint(i, j, state);
+        List<Tree<String>> children = new ArrayList<Tree<String>>(2);
+        children.add(traverseBackPointersHelper(sent, chart, i, mid, grammar.binaryRuleLeftChildren[rule]));
+        children.add(traverseBackPointersHelper(sent, chart, mid, j, grammar.binaryRuleRightChildren[rule]));
+        return new Tree<String>(label, children);
     }
 
     protected <L> Tree<L> buildUnaryTree(List<L> path, List<Tree<L>> leafChildren) {
@@ -198,116 +338,638 @@ class BaselineCkyParser implements Parser {
     // traverse back pointers and create a tree
     Tree<String> traverseBackPointers(List<String> sentence, Chart chart) {
 
-        Tree<String> annotatedBestParse;
-        if (!chart.getAllCandidateLabels(0, sentence.size()).contains("ROOT")) {
-            // this line is here only to make sure that a baseline without binary rules can output
-            // something
-            annotatedBestParse = new Tree<String>(chart.getBestLabel(0, sentence.size()));
-        } else {
+        int root = stateIndexer.indexOf("ROOT");
+        if (root >= 0 && chart.get(0, sentence.size(), root) != chart.emptyScore) {
             // in reality we always want to start with the ROOT symbol of the grammar
-            annotatedBestParse = new Tree<String>("ROOT");
+            return traverseBackPointersHelper(sentence, chart, 0, sentence.size(), root);
         }
-        traverseBackPointersHelper(sentence, chart, 0, sentence.size(), annotatedBestParse);
-        return annotatedBestParse;
+
+        // this is here only to make sure that a baseline without binary rules, or a pruned chart without ROOT, can
+        // output something: the best item over the whole sentence goes below a new root, and if there is none, the
+        // best tag of every word is attached to the root
+        List<Tree<String>> children = new ArrayList<Tree<String>>();
+        int best = chart.getBestState(0, sentence.size());
+        if (best >= 0) {
+            children.add(traverseBackPointersHelper(sentence, chart, 0, sentence.size(), best));
+        } else {
+            for (int k = 0; k < sentence.size(); k++) {
+                children.add(traverseBackPointersHelper(sentence, chart, k, k + 1, chart.getBestState(k, k + 1)));
+            }
+        }
+        return new Tree<String>("ROOT", children);
 
     }
 
     public Tree<String> getBestParse(List<String> sentence) {
-        Chart chart = new Chart(sentence.size());
+        Chart chart = buildChart(sentence, null);
 
-        // preterminal rules
+        // use back pointers to create a tree
+        Tree<String> annotatedBestParse = traverseBackPointers(sentence, chart);
+
+        return annotator.unAnnotateTree(annotatedBestParse);
+    }
+
+    /**
+     * Returns up to k distinct parses of the sentence, best first, extracted lazily from a single chart.  Derivations
+     * that differ only in their annotation give the same parse, which is then listed once.
+     */
+    public List<Tree<String>> getKBestParses(List<String> sentence, int k) {
+        Chart chart = buildChart(sentence, null);
+        if (!hasRoot(chart)) {
+            return Collections.singletonList(annotator.unAnnotateTree(traverseBackPointers(sentence, chart)));
+        }
+
+        KBestExtractor extractor = new KBestExtractor(this, sentence, chart);
+        int root = stateIndexer.indexOf("ROOT");
+        List<Tree<String>> parses = new ArrayList<Tree<String>>();
+        Set<String> seenParses = new HashSet<String>();
+        for (int rank = 0; parses.size() < k; rank++) {
+            Tree<String> annotatedParse = extractor.getParse(root, rank);
+            if (annotatedParse == null) {
+                break;
+            }
+            Tree<String> parse = annotator.unAnnotateTree(annotatedParse);
+            if (seenParses.add(parse.toString())) {
+                parses.add(parse);
+            }
+        }
+        return parses;
+    }
+
+    /**
+     * Creates an empty chart for the sentence that only holds the preterminal items, restricted to the mask if there is
+     * one.
+     */
+    Chart newChart(List<String> sentence, ProjectedItemMask mask) {
+        return newChart(sentence, mask, false);
+    }
+
+    /**
+     * Creates an empty chart for the sentence like newChart(sentence, mask), but if constrain is set only with the
+     * tags the tagger keeps and without the cells the cell constraints close.
+     */
+    Chart newChart(List<String> sentence, ProjectedItemMask mask, boolean constrain) {
+        Lexicon.TagScores[] sentenceTagScores = (constrain && tagBeam < Double.POSITIVE_INFINITY
+                ? tagger.getTags(sentence, tagBeam) : null);
+        Chart chart = charts.get();
+        if (chart == null || chart.capacity < sentence.size()) {
+            chart = new Chart(sentence.size(), stateIndexer.size(), emptyScore);
+            charts.set(chart);
+        }
+        chart.reset(sentence.size(), mask);
+        if (constrain && cellThreshold > 0.0) {
+            chart.closedCells = cellConstraints.getClosedCells(sentence, chart, cellThreshold);
+        }
+
+        // preterminal rules, from the precompiled tag scores of each word, which leave out impossible tags
         for (int k = 0; k < sentence.size(); k++) {
-            for (String preterm : lexicon.getAllTags()) {
-                final double score = lexicon.scoreTagging(sentence.get(k), preterm);
-                if (score == 0) {
-                    // We can ignore impossible terms to improve speed
+            chart.openCell(k, k + 1);
+            final int cellIndex = chart.cellIndex(k, k + 1);
+            final Lexicon.TagScores tagScores = (sentenceTagScores != null ? sentenceTagScores[k]
+                    : lexicon.getTagScores(sentence.get(k)));
+            for (int t = 0; t < tagScores.size(); t++) {
+                final int tag = tagScores.getTag(t);
+                if (mask != null && !mask.isAllowed(cellIndex, tag)) {
                     continue;
                 }
-                chart.set(k, k + 1, preterm, score);
+                chart.set(k, k + 1, tag, logDomain ? tagScores.getLogScore(t) : tagScores.getScore(t));
             }
         }
+        return chart;
+    }
 
-        for (int max = 1; max <= sentence.size(); max++) {
-            for (int min = max - 1; min >= 0; min--) {
-                // Determine the best binary rules first so that they can be used for unary scoring
-                for (String parent : grammar.states) {
-                    double bestScore = 0;
-                    int optMid = -1;
-
-                    BinaryRule optBinaryRule = null;
-                    for (BinaryRule rule : grammar.getBinaryRulesByParent(parent)) {
-                        for (int mid = min + 1; mid < max; mid++) {
-                            double score1 = chart.get(min, mid, rule.getLeftChild());
-                            double score2 = chart.get(mid, max, rule.getRightChild());
-                            double currScore = score1 * score2 * rule.getScore();
-                            if (currScore > bestScore) {
-                                bestScore = currScore;
-                                optMid = mid;
-                                optBinaryRule = rule;
-                            }
-                        }
-                    }
+    /**
+     * Fills a chart for the sentence, only with items allowed by the mask if there is one, and with the tags kept by
+     * the tagger and the cells left open by the cell constraints if those are on.
+     */
+    Chart buildChart(List<String> sentence, ProjectedItemMask mask) {
+        if (tagBeam < Double.POSITIVE_INFINITY || cellThreshold > 0.0) {
+            Chart chart = fillChart(newChart(sentence, mask, true));
+            if (hasRoot(chart)) {
+                return chart;
+            }
+            // the tagger dropped a tag or the constraints closed a cell that every parse needs, so parse again with
+            // the whole tag dictionary and all cells
+        }
+        return fillChart(newChart(sentence, mask, false));
+    }
+
+    private Chart fillChart(Chart chart) {
+        final int length = chart.length;
+        final ForkJoinPool cellPool = this.cellPool;
+        long edges = 0;
+        if (cellPool != null && length >= minParallelLength) {
+            // Cells of the same span only depend on shorter spans, so every diagonal is filled in parallel, unless it
+            // has too few cells to give every worker a range
+            final int parallelism = cellPool.getParallelism();
+            for (int span = 1; span <= length; span++) {
+                final int numCells = length - span + 1;
+                final int grain = Math.max(1, numCells / (TASKS_PER_THREAD * parallelism));
+                if (numCells > grain) {
+                    edges += cellPool.invoke(new DiagonalTask(chart, span, 0, numCells, grain));
+                } else {
+                    edges += fillCells(chart, span, 0, numCells);
+                }
+            }
+        } else {
+            for (int max = 1; max <= length; max++) {
+                for (int min = max - 1; min >= 0; min--) {
+                    edges += fillCell(chart, min, max);
+                }
+            }
+        }
+
+        numEdges.addAndGet(edges);
+        return chart;
+    }
+
+    /**
+     * Fills the cells [from, to) of the diagonal of the given span, and returns the number of items they keep.
+     */
+    int fillCells(Chart chart, int span, int from, int to) {
+        int edges = 0;
+        for (int min = from; min < to; min++) {
+            edges += fillCell(chart, min, min + span);
+        }
+        return edges;
+    }
+
+    /**
+     * Returns whether the chart contains a ROOT item over the whole sentence.
+     */
+    boolean hasRoot(Chart chart) {
+        int root = stateIndexer.indexOf("ROOT");
+        return root >= 0 && chart.get(0, chart.length, root) != chart.emptyScore;
+    }
+
+    /**
+     * Fills the cells [from, to) of the diagonal of the given span, splitting the range over the pool's workers until
+     * the ranges have at most grain cells, and returns the number of items they keep.  Every task counts the items of
+     * its own cells, and the counts are summed as the tasks are joined, so the workers share no counter.
+     */
+    class DiagonalTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        final Chart chart;
+        final int span;
+        final int from;
+        final int to;
+        final int grain;
+
+        DiagonalTask(Chart chart, int span, int from, int to, int grain) {
+            this.chart = chart;
+            this.span = span;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= grain) {
+                return (long) fillCells(chart, span, from, to);
+            }
+            int mid = (from + to) / 2;
+            DiagonalTask right = new DiagonalTask(chart, span, mid, to, grain);
+            right.fork();
+            long edges = new DiagonalTask(chart, span, from, mid, grain).compute();
+            return edges + right.join();
+        }
+    }
+
+    /**
+     * Computes the best binary and unary items of the cell (min, max), whose sub spans must all be complete, and
+     * returns the number of items it keeps.
+     */
+    int fillCell(Chart chart, int min, int max) {
+        final int numStates = chart.numStates;
+        final int[] closedRuleParents = unaryClosure.closedRuleParents;
+        final double[] closedRuleScores = this.closedRuleScores;
+        final int[] closedRulesByChild = unaryClosure.closedRulesByChild;
+        final int[] closedRulesByChildOffsets = unaryClosure.closedRulesByChildOffsets;
+        final double[] scores = chart.scores;
+        final double[] preUnaryScores = chart.preUnaryScores;
+        final boolean logDomain = this.logDomain;
+        final double emptyScore = this.emptyScore;
+
+        chart.openCell(min, max);
+        final int offset = chart.cellOffset(min, max);
+        final int cellIndex = chart.cellIndex(min, max);
+        final ProjectedItemMask mask = chart.mask;
+        if (chart.isClosed(cellIndex)) {
+            // the span was ruled out before parsing, or no refinement of any coarse item over it survived
+            return chart.collectCellStates(min, max);
+        }
+
+        // Determine the best binary rules first so that they can be used for unary scoring
+        fillBinaryItems(chart, min, max);
+
+        System.arraycopy(scores, offset, preUnaryScores, offset, numStates);
 
-                    if (optBinaryRule != null) {
-                        chart.set(min, max, parent, bestScore);
-                        chart.setBackPointer(min, max, parent, optBinaryRule, optMid);
+        // With the binary rules in place, apply the closed unary rules of every state present in the cell. The
+        // children are read from the scores before the unary pass, so that every closed rule is applied to the
+        // binary pass only, and self-loops are not in the table
+        for (int child = 0; child < numStates; child++) {
+            final double childScore = preUnaryScores[offset + child];
+            if (childScore == emptyScore) {
+                continue;
+            }
+            final int end = closedRulesByChildOffsets[child + 1];
+            for (int k = closedRulesByChildOffsets[child]; k < end; k++) {
+                final int rule = closedRulesByChild[k];
+                final int parent = closedRuleParents[rule];
+                final double currScore = logDomain ? childScore + closedRuleScores[rule]
+                        : childScore * closedRuleScores[rule];
+                final int index = offset + parent;
+                if (currScore > scores[index]) {
+                    if (mask != null && !mask.isAllowed(cellIndex, parent)) {
+                        continue;
                     }
+                    scores[index] = currScore;
+                    chart.setUnaryBackPointer(index, rule);
                 }
+            }
+        }
 
-                // With the binary rules in place, consider unary rules
-                for (String parent : grammar.states) {
-                    double bestScore = chart.get(min, max, parent);
+        if ((beamSize < numStates || pruningThreshold < Double.POSITIVE_INFINITY) && (min > 0 || max < chart.length)) {
+            pruneCell(chart, offset, pruningBuffers.get());
+        }
 
-                    UnaryRule optUnaryRule = null;
-                    for (UnaryRule rule : unaryClosure.getClosedUnaryRulesByParent(parent)) {
-                        if (rule.getChild().equals(parent)) {
-                            // Ignore children that cause instant recursion
-                            continue;
-                        }
+        return chart.collectCellStates(min, max);
+    }
 
-                        double currScore = chart.get(min, max, rule.getChild()) * rule.getScore();
-                        if (currScore > bestScore) {
-                            bestScore = currScore;
-                            optUnaryRule = rule;
+    /**
+     * Scores the items of the open cell (min, max) that binary rules build, whose sub spans must all be complete, with
+     * the best rule and split point of each as its backpointer.  Only the left children present in the left cell are
+     * visited, together with their rules, and a rule is skipped as soon as its right child turns out to be absent.
+     */
+    void fillBinaryItems(Chart chart, int min, int max) {
+        final int[] binaryRuleParents = grammar.binaryRuleParents;
+        final int[] binaryRuleRightChildren = grammar.binaryRuleRightChildren;
+        final double[] binaryRuleScores = this.binaryRuleScores;
+        final int[] binaryRulesByLeftChildOffsets = grammar.binaryRulesByLeftChildOffsets;
+        final double[] scores = chart.scores;
+        final int[] cellStates = chart.cellStates;
+        final boolean logDomain = this.logDomain;
+        final double emptyScore = this.emptyScore;
+        final int offset = chart.cellOffset(min, max);
+        final int cellIndex = chart.cellIndex(min, max);
+        final ProjectedItemMask mask = chart.mask;
+
+        for (int mid = min + 1; mid < max; mid++) {
+            final int leftOffset = chart.cellOffset(min, mid);
+            final int rightOffset = chart.cellOffset(mid, max);
+            final int numLeftChildren = chart.numCellStates[chart.cellIndex(min, mid)];
+            for (int k = 0; k < numLeftChildren; k++) {
+                final int leftChild = cellStates[leftOffset + k];
+                final double score1 = scores[leftOffset + leftChild];
+
+                final int end = binaryRulesByLeftChildOffsets[leftChild + 1];
+                for (int rule = binaryRulesByLeftChildOffsets[leftChild]; rule < end; rule++) {
+                    double score2 = scores[rightOffset + binaryRuleRightChildren[rule]];
+                    if (score2 == emptyScore) {
+                        continue;
+                    }
+                    double currScore = logDomain ? score1 + score2 + binaryRuleScores[rule]
+                            : score1 * score2 * binaryRuleScores[rule];
+                    int index = offset + binaryRuleParents[rule];
+                    if (currScore > scores[index]) {
+                        if (mask != null && !mask.isAllowed(cellIndex, binaryRuleParents[rule])) {
+                            continue;
                         }
+                        scores[index] = currScore;
+                        chart.setBinaryBackPointer(index, rule, mid);
                     }
+                }
+            }
+        }
+    }
 
-                    if (optUnaryRule != null) {
-                        chart.set(min, max, parent, bestScore);
-                        chart.setBackPointer(min, max, parent, optUnaryRule);
-                    }
+    /**
+     * Removes the states of a completed cell whose figure of merit falls outside the beam or below the threshold,
+     * except for the states in rootStates, using buffer as scratch space.
+     */
+    void pruneCell(Chart chart, int offset, double[] buffer) {
+        final double[] scores = chart.scores;
+        final int numStates = chart.numStates;
+        double bestMerit = emptyScore;
+        for (int state = 0; state < numStates; state++) {
+            final double score = scores[offset + state];
+            if (score != emptyScore) {
+                bestMerit = Math.max(bestMerit, getMerit(score, state));
+            }
+        }
+        if (bestMerit == emptyScore) {
+            return;
+        }
+
+        // Only the merits within the threshold compete for the beam
+        double cutoff = logDomain ? bestMerit - pruningThreshold : bestMerit * Math.exp(-pruningThreshold);
+        int count = 0;
+        for (int state = 0; state < numStates; state++) {
+            final double score = scores[offset + state];
+            if (score != emptyScore) {
+                final double merit = getMerit(score, state);
+                if (merit >= cutoff) {
+                    buffer[count++] = merit;
                 }
             }
         }
+        if (count > beamSize) {
+            cutoff = Math.max(cutoff, selectLargest(buffer, count, beamSize));
+        }
 
-        // use back pointers to create a tree
-        Tree<String> annotatedBestParse = traverseBackPointers(sentence, chart);
+        for (int state = 0; state < numStates; state++) {
+            final double score = scores[offset + state];
+            if (score != emptyScore && !rootStates[state] && getMerit(score, state) < cutoff) {
+                scores[offset + state] = emptyScore;
+            }
+        }
+    }
 
-        return annotator.unAnnotateTree(annotatedBestParse);
+    private double getMerit(double score, int state) {
+        return logDomain ? score + statePriors[state] : score * statePriors[state];
+    }
+
+    /**
+     * Returns the k-th largest of the first count values, which it reorders, by quickselect.
+     */
+    static double selectLargest(double[] values, int count, int k) {
+        int from = 0;
+        int to = count - 1;
+        final int target = k - 1;
+        while (from < to) {
+            final double pivot = values[(from + to) >>> 1];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (values[i] > pivot) {
+                    i++;
+                }
+                while (values[j] < pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final double value = values[i];
+                    values[i++] = values[j];
+                    values[j--] = value;
+                }
+            }
+            if (target <= j) {
+                to = j;
+            } else if (target >= i) {
+                from = i;
+            } else {
+                break;
+            }
+        }
+        return values[target];
+    }
+
+    /**
+     * Fills the chart of every sentence with at least minParallelLength words using numThreads threads.  The pool of
+     * an earlier call is kept if it has as many threads, and shut down otherwise; one thread fills every chart
+     * sequentially.
+     */
+    public void setCellParallelism(int numThreads, int minParallelLength) {
+        if (cellPool != null && (numThreads <= 1 || cellPool.getParallelism() != numThreads)) {
+            cellPool.shutdown();
+            cellPool = null;
+        }
+        if (numThreads > 1 && cellPool == null) {
+            cellPool = new ForkJoinPool(numThreads);
+        }
+        this.minParallelLength = minParallelLength;
+    }
+
+    /**
+     * Limits every cell to its beamSize best states, and to states whose log score is at most threshold below the
+     * best one.
+     */
+    public void setPruning(int beamSize, double threshold) {
+        this.beamSize = beamSize;
+        this.pruningThreshold = threshold;
+    }
+
+    /**
+     * Restricts the tags of every word to those whose posterior under the tagger is at least exp(-beam) times that of
+     * its best tag.
+     */
+    public void setTagPruning(double beam) {
+        this.tagBeam = beam;
+    }
+
+    /**
+     * Closes the cells of spans where a multi-word constituent begins or ends with a probability below threshold.
+     */
+    public void setCellConstraints(double threshold) {
+        this.cellThreshold = threshold;
+    }
+
+    /**
+     * Parses with the trained grammar compacted to the rules seen at least minCount times that make up minMass of the
+     * probability of their parent, renormalized, as Grammar.compact does.  Every call compacts the trained grammar, so
+     * minCount 0 and minMass 1 restore it. The pruning priors and the states kept for ROOT follow the compacted grammar.
+     */
+    public void setRuleCompaction(double minCount, double minMass) {
+        grammar = trainedGrammar.compact(minCount, minMass);
+        unaryClosure = new UnaryClosure(grammar);
+        compileRuleScores();
+        compilePruningPriors();
+    }
+
+    /**
+     * Returns the number of chart items kept since the last call, over all parsed sentences.
+     */
+    public long getAndResetNumEdges() {
+        return numEdges.getAndSet(0);
     }
 
     public BaselineCkyParser(List<Tree<String>> trainTrees, TreeAnnotator annotator) {
+        this(trainTrees, annotator, false);
+    }
 
-        this.annotator = annotator;
+    public BaselineCkyParser(List<Tree<String>> trainTrees, TreeAnnotator annotator, boolean logDomain) {
+        this(trainTrees, annotator, logDomain, 1);
+    }
 
-        System.out.print("Annotating / binarizing training trees ... ");
-        List<Tree<String>> annotatedTrainTrees = annotateTrees(trainTrees);
+    /**
+     * Trains the parser with the annotation of the training trees and the counting of the grammar and lexicon spread
+     * over numTrainThreads threads.  The model is exactly the one a single thread would build.
+     */
+    public BaselineCkyParser(List<Tree<String>> trainTrees, TreeAnnotator annotator, boolean logDomain,
+            int numTrainThreads) {
 
-        System.out.println("done.");
+        this.annotator = annotator;
+        this.logDomain = logDomain;
+        this.emptyScore = logDomain ? Double.NEGATIVE_INFINITY : 0.0;
+
+        ExecutorService executor = (numTrainThreads > 1 ? Executors.newFixedThreadPool(numTrainThreads) : null);
+        List<Tree<String>> annotatedTrainTrees;
+        try {
+            System.out.print("Annotating / binarizing training trees ... ");
+            annotatedTrainTrees = annotateTrees(trainTrees, executor, numTrainThreads);
+
+            System.out.println("done.");
+
+            System.out.print("Building grammar ... ");
+            grammar = new Grammar(annotatedTrainTrees, executor, numTrainThreads);
+            lexicon = new Lexicon(annotatedTrainTrees, executor, numTrainThreads);
+            System.out.println("done. (" + grammar.getStates().size() + " states)");
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
 
-        System.out.print("Building grammar ... ");
-        grammar = new Grammar(annotatedTrainTrees);
-        lexicon = new Lexicon(annotatedTrainTrees);
-        System.out.println("done. (" + grammar.getStates().size() + " states)");
+        trainedGrammar = grammar;
+        unaryClosure = new UnaryClosure(grammar);
+        compile();
+        tagger = new HmmTagger(annotatedTrainTrees, lexicon, stateIndexer);
+        cellConstraints = new CellConstraints(annotatedTrainTrees, lexicon);
+    }
 
+    /**
+     * Builds the parser of the projection of another parser's trained grammar and lexicon onto coarser symbols, as
+     * Grammar and Lexicon project them. It has no tagger and no cell constraints, and needs no training trees. With
+     * maxScores the projection scores every rule and tag with the best of the scores it projects, and projects the
+     * grammar the parser currently parses with, so that its Viterbi scores bound those of the parser.
+     */
+    BaselineCkyParser(BaselineCkyParser parser, LabelProjection projection, boolean logDomain, boolean maxScores) {
+        this.annotator = new ProjectingAnnotator(parser.annotator, projection);
+        this.logDomain = logDomain;
+        this.emptyScore = logDomain ? Double.NEGATIVE_INFINITY : 0.0;
+
+        grammar = new Grammar(maxScores ? parser.grammar : parser.trainedGrammar, projection, maxScores);
+        lexicon = new Lexicon(parser.lexicon, projection, grammar.getStateIndexer(), maxScores);
+        trainedGrammar = grammar;
         unaryClosure = new UnaryClosure(grammar);
+        compile();
+    }
+
+    /**
+     * Reads a model written by save, in the order save writes its sections.
+     */
+    private BaselineCkyParser(DataInput in, TreeAnnotator annotator, boolean logDomain) throws IOException {
+        this.annotator = annotator;
+        this.logDomain = logDomain;
+        this.emptyScore = logDomain ? Double.NEGATIVE_INFINITY : 0.0;
+
+        ModelFormat.readHeader(in);
+        String annotatorName = in.readUTF();
+        if (!annotatorName.equals(annotator.getClass().getName())) {
+            throw new IllegalArgumentException("The model was trained with " + annotatorName + ", not with "
+                    + annotator.getClass().getName());
+        }
+        grammar = new Grammar(in);
+        trainedGrammar = grammar;
+        unaryClosure = new UnaryClosure(in, grammar.getStateIndexer());
+        lexicon = new Lexicon(in, grammar.getStateIndexer());
+        compile();
+        tagger = new HmmTagger(in, lexicon, stateIndexer);
+        cellConstraints = new CellConstraints(in, lexicon);
+    }
+
+    /**
+     * Loads a model written by save, reading it through a memory mapping of the file. The annotator has to be of the
+     * class the model was trained with, and the model can be used in either domain.
+     */
+    public static BaselineCkyParser load(String path, TreeAnnotator annotator, boolean logDomain) throws IOException {
+        return new BaselineCkyParser(MappedModelInput.map(path), annotator, logDomain);
+    }
+
+    /**
+     * Writes the trained model to path, in the format of ModelFormat: the class of the annotator, the grammar with its
+     * state ids, the unary closure with its paths, the lexicon counts, the tagger and the cell constraints.
+     */
+    public void save(String path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            ModelFormat.writeHeader(out);
+            out.writeUTF(annotator.getClass().getName());
+            grammar.write(out);
+            unaryClosure.write(out);
+            lexicon.write(out);
+            tagger.write(out);
+            cellConstraints.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sets up the id-indexed tables the parser works on, once the grammar, the unary closure and the lexicon exist.
+     */
+    private void compile() {
+        stateIndexer = grammar.getStateIndexer();
+        tags = new ArrayList<String>(lexicon.getAllTags());
+        tagIds = new int[tags.size()];
+        for (int t = 0; t < tags.size(); t++) {
+            tagIds[t] = stateIndexer.indexOf(tags.get(t));
+        }
+        lexicon.compile(stateIndexer);
+        compileRuleScores();
+        compilePruningPriors();
+    }
+
+    /**
+     * Sets the prior of every state to its relative frequency among the nodes of the training trees, counted from the
+     * rules it is the parent of and from the tags of the lexicon, and marks ROOT and its closed unary children.
+     */
+    private void compilePruningPriors() {
+        final int numStates = stateIndexer.size();
+        double[] counts = new double[numStates];
+        double total = 0.0;
+        for (int rule = 0; rule < grammar.binaryRuleParents.length; rule++) {
+            counts[grammar.binaryRuleParents[rule]] += grammar.binaryRuleCounts.get(rule);
+            total += grammar.binaryRuleCounts.get(rule);
+        }
+        for (int rule = 0; rule < grammar.unaryRuleParents.length; rule++) {
+            counts[grammar.unaryRuleParents[rule]] += grammar.unaryRuleCounts.get(rule);
+            total += grammar.unaryRuleCounts.get(rule);
+        }
+        for (int t = 0; t < tags.size(); t++) {
+            final double count = lexicon.tagCounter.getCount(tags.get(t));
+            counts[tagIds[t]] += count;
+            total += count;
+        }
+        statePriors = new double[numStates];
+        for (int state = 0; state < numStates; state++) {
+            statePriors[state] = logDomain ? Math.log(counts[state] / total) : counts[state] / total;
+        }
+
+        rootStates = new boolean[numStates];
+        final int root = stateIndexer.indexOf("ROOT");
+        if (root >= 0) {
+            rootStates[root] = true;
+            for (int k = unaryClosure.closedRulesByParentOffsets[root]; k < unaryClosure.closedRulesByParentOffsets[root + 1]; k++) {
+                rootStates[unaryClosure.closedRuleChildren[k]] = true;
+            }
+        }
+    }
 
+    private void compileRuleScores() {
+        if (grammar.binaryRuleParents.length >= Chart.RULE_MASK || unaryClosure.closedRuleParents.length >= Chart.RULE_MASK) {
+            throw new IllegalArgumentException("Too many rules for the chart's backpointers");
+        }
+        binaryRuleScores = logDomain ? DoubleArrays.log(grammar.binaryRuleScores) : grammar.binaryRuleScores;
+        closedRuleScores = logDomain ? DoubleArrays.log(unaryClosure.closedRuleScores) : unaryClosure.closedRuleScores;
     }
 
-    private List<Tree<String>> annotateTrees(List<Tree<String>> trees) {
+    private List<Tree<String>> annotateTrees(List<Tree<String>> trees, ExecutorService executor, int numShards) {
         List<Tree<String>> annotatedTrees = new ArrayList<Tree<String>>();
-        for (Tree<String> tree : trees) {
-            annotatedTrees.add(annotator.annotateTree(tree));
+        List<List<Tree<String>>> shards = TrainingShards.process(trees, executor, numShards,
+                new TrainingShards.ShardTask<List<Tree<String>>>() {
+                    public List<Tree<String>> process(List<Tree<String>> shard) {
+                        List<Tree<String>> annotatedShard = new ArrayList<Tree<String>>();
+                        for (Tree<String> tree : shard) {
+                            annotatedShard.add(annotator.annotateTree(tree));
+                        }
+                        return annotatedShard;
+                    }
+                });
+        for (List<Tree<String>> annotatedShard : shards) {
+            annotatedTrees.addAll(annotatedShard);
         }
         return annotatedTrees;
     }
@@ -315,52 +977,34 @@ class BaselineCkyParser implements Parser {
     @Override
     public double getLogScore(Tree<String> annotatedTree) {
         final List<Tree<String>> children = annotatedTree.getChildren();
-        double logScore = 0.0;
 
         // The stop condition gets the score of the leaf word for this position
         if (annotatedTree.isPreTerminal()) {
             return Math.log(lexicon.scoreTagging(children.get(0).getLabel(), annotatedTree.getLabel()));
         }
 
-        // If we're not pre-terminal, we look at how many children we have
-        if (children.size() == 1) {
-            // When there's only one child, use unary rules
-            final List<UnaryRule> parentRules = grammar.getUnaryRulesByParent(annotatedTree.getLabel());
-            final List<UnaryRule> childRules = grammar.getUnaryRulesByChild(children.get(0).getLabel());
-
-            // Intersect the rules
-            final List<UnaryRule> currentRules = new ArrayList<>(parentRules);
-            currentRules.retainAll(childRules);
-
-            // If there are non-existing sentence shapes the tree is not possible
-            if (currentRules.isEmpty()) {
+        final int parent = stateIndexer.indexOf(annotatedTree.getLabel());
+        final int[] childStates = new int[children.size()];
+        for (int k = 0; k < children.size(); k++) {
+            childStates[k] = stateIndexer.indexOf(children.get(k).getLabel());
+            if (childStates[k] < 0) {
+                // Symbols the grammar has never seen make the tree impossible
                 return Double.NEGATIVE_INFINITY;
             }
+        }
+        if (parent < 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
 
-            // Return its score and its child's score
-            logScore += Math.log(currentRules.get(0).getScore()) + getLogScore(children.get(0));
-
+        // If we're not pre-terminal, we look at how many children we have
+        if (children.size() == 1) {
+            // When there's only one child, use unary rules. Non-existing rules give a score of zero, which makes the
+            // tree impossible
+            return Math.log(grammar.getUnaryScore(parent, childStates[0])) + getLogScore(children.get(0));
         } else {
             // When there are two children, use binary rules
-            final List<BinaryRule> parentRules = grammar.getBinaryRulesByParent(annotatedTree.getLabel());
-            final List<BinaryRule> leftChildRules = grammar.getBinaryRulesByLeftChild(children.get(0).getLabel());
-            final List<BinaryRule> rightChildRules = grammar.getBinaryRulesByRightChild(children.get(1).getLabel());
-
-            // Intersect the rules
-            final List<BinaryRule> currentRules = new ArrayList<>(parentRules);
-            currentRules.retainAll(leftChildRules);
-            currentRules.retainAll(rightChildRules);
-
-            // If there are non-existing sentence shapes the tree is not possible
-            if (currentRules.isEmpty()) {
-                return Double.NEGATIVE_INFINITY;
-            }
-
-            // Return its score and its children's score
-            logScore += Math.log(currentRules.get(0).getScore()) + getLogScore(children.get(0))
-                    + getLogScore(children.get(1));
+            return Math.log(grammar.getBinaryScore(parent, childStates[0], childStates[1]))
+                    + getLogScore(children.get(0)) + getLogScore(children.get(1));
         }
-
-        return logScore;
     }
 }
@@ -0,0 +1,181 @@
+package nlp.assignments.parsing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import nlp.ling.Tree;
+import nlp.util.CommandLineUtils;
+
+/**
+ * Times the binary pass of BaselineCkyParser.fillCell, which visits every rule of every left child present in the
+ * chart, against a kernel over rule blocks grouped by (left, right) child pair, which visits the right children
+ * present and only scores the rules of pairs whose left child is present too.  The pair blocks are what a SIMD kernel
+ * would run over, so the benchmark also reports how long they are for the grammar at hand.  Both kernels run on the
+ * same cells of the filled charts of the validation sentences, and the scores they compute are checked to be equal.
+ */
+public class BinaryRuleKernelBenchmark {
+
+    public static void main(String[] args) {
+        Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+        String basePath = argMap.containsKey("-path") ? argMap.get("-path") : "data";
+        int maxLength = argMap.containsKey("-maxTestLength") ? Integer.parseInt(argMap.get("-maxTestLength")) : 20;
+        int repetitions = argMap.containsKey("-repetitions") ? Integer.parseInt(argMap.get("-repetitions")) : 5;
+        boolean logDomain = argMap.containsKey("-log-domain");
+
+        List<Tree<String>> trainTrees = PCFGParserTester.readTrees(basePath, 200, 2199, 20);
+        List<Tree<String>> testTrees = PCFGParserTester.readTrees(basePath, 2200, 2299, maxLength);
+        BaselineCkyParser parser = new BaselineCkyParser(trainTrees, new BaselineTreeAnnotations(), logDomain);
+        PairBlocks pairBlocks = new PairBlocks(parser.grammar);
+        System.out.printf("%d binary rules in %d child pairs, at most %d rules per pair%n",
+                parser.grammar.binaryRuleParents.length, pairBlocks.leftChildren.length, pairBlocks.maxBlockLength);
+
+        // the first round only warms up the JIT compiler
+        for (int round = 0; round <= repetitions; round++) {
+            long leftChildTime = 0;
+            long blockedTime = 0;
+            for (Tree<String> testTree : testTrees) {
+                BaselineCkyParser.Chart chart = parser.buildChart(testTree.getYield(), null);
+                for (int span = 2; span <= chart.length; span++) {
+                    for (int min = 0; min + span <= chart.length; min++) {
+                        final int max = min + span;
+                        final int offset = chart.cellOffset(min, max);
+                        final double[] scores = Arrays.copyOfRange(chart.scores, offset, offset + chart.numStates);
+
+                        Arrays.fill(chart.scores, offset, offset + chart.numStates, chart.emptyScore);
+                        long startTime = System.nanoTime();
+                        parser.fillBinaryItems(chart, min, max);
+                        leftChildTime += System.nanoTime() - startTime;
+                        check(chart, offset);
+
+                        Arrays.fill(chart.scores, offset, offset + chart.numStates, chart.emptyScore);
+                        startTime = System.nanoTime();
+                        pairBlocks.fillBinaryItems(parser, chart, min, max);
+                        blockedTime += System.nanoTime() - startTime;
+                        check(chart, offset);
+
+                        System.arraycopy(scores, 0, chart.scores, offset, chart.numStates);
+                    }
+                }
+            }
+            if (round > 0) {
+                System.out.printf("round %d: left child driven %.3f s, pair blocks %.3f s, ratio %.2f%n", round,
+                        leftChildTime / 1e9, blockedTime / 1e9, (double) blockedTime / leftChildTime);
+            }
+        }
+    }
+
+    /**
+     * Checks that the binary pass just run reproduced the scores the chart had before the unary pass.
+     */
+    private static void check(BaselineCkyParser.Chart chart, int offset) {
+        for (int state = 0; state < chart.numStates; state++) {
+            if (chart.scores[offset + state] != chart.preUnaryScores[offset + state]) {
+                throw new IllegalStateException("Binary kernels disagree on state " + state);
+            }
+        }
+    }
+
+    /**
+     * The binary rules of a grammar in blocks of the same (left, right) child pair, with the pairs grouped by right
+     * child: the pairs of right child c are [pairsByRightChildOffsets[c], pairsByRightChildOffsets[c + 1]), and the
+     * rules of pair p are ruleIds[k] for k in [rulesByPairOffsets[p], rulesByPairOffsets[p + 1]).
+     */
+    static class PairBlocks {
+
+        final int[] ruleIds;
+        final int[] rulesByPairOffsets;
+        final int[] leftChildren;
+        final int[] pairsByRightChildOffsets;
+        final int maxBlockLength;
+
+        PairBlocks(final Grammar grammar) {
+            final int numRules = grammar.binaryRuleParents.length;
+            Integer[] rules = new Integer[numRules];
+            for (int rule = 0; rule < numRules; rule++) {
+                rules[rule] = rule;
+            }
+            Arrays.sort(rules, new Comparator<Integer>() {
+                public int compare(Integer rule1, Integer rule2) {
+                    if (grammar.binaryRuleRightChildren[rule1] != grammar.binaryRuleRightChildren[rule2]) {
+                        return grammar.binaryRuleRightChildren[rule1] - grammar.binaryRuleRightChildren[rule2];
+                    }
+                    return grammar.binaryRuleLeftChildren[rule1] - grammar.binaryRuleLeftChildren[rule2];
+                }
+            });
+
+            ruleIds = new int[numRules];
+            List<Integer> pairOffsets = new ArrayList<Integer>();
+            pairsByRightChildOffsets = new int[grammar.getNumStates() + 1];
+            for (int k = 0; k < numRules; k++) {
+                ruleIds[k] = rules[k];
+                if (k == 0 || grammar.binaryRuleLeftChildren[rules[k]] != grammar.binaryRuleLeftChildren[rules[k - 1]]
+                        || grammar.binaryRuleRightChildren[rules[k]] != grammar.binaryRuleRightChildren[rules[k - 1]]) {
+                    pairOffsets.add(k);
+                    pairsByRightChildOffsets[grammar.binaryRuleRightChildren[rules[k]] + 1]++;
+                }
+            }
+            for (int state = 0; state < grammar.getNumStates(); state++) {
+                pairsByRightChildOffsets[state + 1] += pairsByRightChildOffsets[state];
+            }
+            pairOffsets.add(numRules);
+
+            rulesByPairOffsets = new int[pairOffsets.size()];
+            leftChildren = new int[pairOffsets.size() - 1];
+            int maxLength = 0;
+            for (int pair = 0; pair < pairOffsets.size(); pair++) {
+                rulesByPairOffsets[pair] = pairOffsets.get(pair);
+                if (pair < leftChildren.length) {
+                    leftChildren[pair] = grammar.binaryRuleLeftChildren[ruleIds[rulesByPairOffsets[pair]]];
+                    maxLength = Math.max(maxLength, pairOffsets.get(pair + 1) - pairOffsets.get(pair));
+                }
+            }
+            maxBlockLength = maxLength;
+        }
+
+        /**
+         * Does what parser.fillBinaryItems does, one block of rules per child pair present in the chart.
+         */
+        void fillBinaryItems(BaselineCkyParser parser, BaselineCkyParser.Chart chart, int min, int max) {
+            final int[] binaryRuleParents = parser.grammar.binaryRuleParents;
+            final double[] binaryRuleScores = parser.binaryRuleScores;
+            final double[] scores = chart.scores;
+            final int[] cellStates = chart.cellStates;
+            final boolean logDomain = parser.logDomain;
+            final double emptyScore = parser.emptyScore;
+            final int offset = chart.cellOffset(min, max);
+
+            for (int mid = min + 1; mid < max; mid++) {
+                final int leftOffset = chart.cellOffset(min, mid);
+                final int rightOffset = chart.cellOffset(mid, max);
+                final int numRightChildren = chart.numCellStates[chart.cellIndex(mid, max)];
+                for (int k = 0; k < numRightChildren; k++) {
+                    final int rightChild = cellStates[rightOffset + k];
+                    final double score2 = scores[rightOffset + rightChild];
+
+                    for (int pair = pairsByRightChildOffsets[rightChild]; pair < pairsByRightChildOffsets[rightChild + 1]; pair++) {
+                        final double score1 = scores[leftOffset + leftChildren[pair]];
+                        if (score1 == emptyScore) {
+                            continue;
+                        }
+                        // the children's score is shared by the whole block, which leaves one independent
+                        // multiply-and-compare per rule
+                        final double childScore = logDomain ? score1 + score2 : score1 * score2;
+                        for (int r = rulesByPairOffsets[pair]; r < rulesByPairOffsets[pair + 1]; r++) {
+                            final int rule = ruleIds[r];
+                            final double currScore = logDomain ? childScore + binaryRuleScores[rule]
+                                    : childScore * binaryRuleScores[rule];
+                            final int index = offset + binaryRuleParents[rule];
+                            if (currScore > scores[index]) {
+                                scores[index] = currScore;
+                                chart.setBinaryBackPointer(index, rule, mid);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
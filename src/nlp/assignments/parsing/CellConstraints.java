@@ -0,0 +1,163 @@
+package nlp.assignments.parsing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import nlp.ling.Tree;
+import nlp.util.Counter;
+
+/**
+ * Closes the chart cells of spans that are unlikely to be a multi-word constituent, before the sentence is parsed.  A
+ * cheap classifier over the boundary words decides for every position whether a multi-word constituent can begin at
+ * it, and whether one can end at it, and the cell (i, j) of a span of at least two words is closed unless a
+ * constituent can begin at i and end at j.  The probabilities are relative frequencies over all constituents of the
+ * annotated training trees, binarization nodes included, given the word on each side of the boundary, backed off to
+ * the word inside the span alone.  Rare words are replaced by their signature, and punctuation is frequent enough to
+ * always be classified by its own statistics, which is where most of the closed cells come from.
+ */
+class CellConstraints {
+
+    // A context is only trusted once it was seen at least MIN_CONTEXT_COUNT times, and a word only stands for itself
+    // once it was seen at least MIN_WORD_COUNT times
+    static final double MIN_CONTEXT_COUNT = 5.0;
+    static final double MIN_WORD_COUNT = 10.0;
+    static final String BOUNDARY = "<S>";
+
+    final Lexicon lexicon;
+
+    // The counts of every context, and of those where a multi-word constituent begins or ends
+    final Counter<String> beginContextCounts;
+    final Counter<String> beginCounts;
+    final Counter<String> endContextCounts;
+    final Counter<String> endCounts;
+
+    CellConstraints(List<Tree<String>> annotatedTrainTrees, Lexicon lexicon) {
+        this.lexicon = lexicon;
+        beginContextCounts = new Counter<String>();
+        beginCounts = new Counter<String>();
+        endContextCounts = new Counter<String>();
+        endCounts = new Counter<String>();
+        for (Tree<String> tree : annotatedTrainTrees) {
+            List<String> words = tree.getYield();
+            boolean[] begins = new boolean[words.size() + 1];
+            boolean[] ends = new boolean[words.size() + 1];
+            markConstituents(tree, 0, begins, ends);
+
+            String[] classes = getWordClasses(words);
+            for (int position = 0; position < words.size(); position++) {
+                for (String context : getBeginContexts(classes, position)) {
+                    beginContextCounts.incrementCount(context, 1.0);
+                    if (begins[position]) {
+                        beginCounts.incrementCount(context, 1.0);
+                    }
+                }
+                for (String context : getEndContexts(classes, position + 1)) {
+                    endContextCounts.incrementCount(context, 1.0);
+                    if (ends[position + 1]) {
+                        endCounts.incrementCount(context, 1.0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the counts written by write.
+     */
+    CellConstraints(DataInput in, Lexicon lexicon) throws IOException {
+        this.lexicon = lexicon;
+        beginContextCounts = ModelFormat.readCounter(in);
+        beginCounts = ModelFormat.readCounter(in);
+        endContextCounts = ModelFormat.readCounter(in);
+        endCounts = ModelFormat.readCounter(in);
+    }
+
+    void write(DataOutput out) throws IOException {
+        ModelFormat.writeCounter(out, beginContextCounts);
+        ModelFormat.writeCounter(out, beginCounts);
+        ModelFormat.writeCounter(out, endContextCounts);
+        ModelFormat.writeCounter(out, endCounts);
+    }
+
+    /**
+     * Marks where the multi-word constituents of the tree, which starts at the given position, begin and end, and
+     * returns the number of words of the tree.
+     */
+    private int markConstituents(Tree<String> tree, int start, boolean[] begins, boolean[] ends) {
+        if (tree.isLeaf()) {
+            return 1;
+        }
+        int length = 0;
+        for (Tree<String> child : tree.getChildren()) {
+            length += markConstituents(child, start + length, begins, ends);
+        }
+        if (length > 1) {
+            begins[start] = true;
+            ends[start + length] = true;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the cells of the chart for the sentence that are closed because a multi-word constituent is less likely
+     * than threshold to begin or to end at one of their boundaries, indexed like the chart's cells.
+     */
+    boolean[] getClosedCells(List<String> sentence, BaselineCkyParser.Chart chart, double threshold) {
+        final int length = sentence.size();
+        String[] classes = getWordClasses(sentence);
+        boolean[] canBegin = new boolean[length + 1];
+        boolean[] canEnd = new boolean[length + 1];
+        for (int position = 0; position < length; position++) {
+            canBegin[position] = getProbability(beginCounts, beginContextCounts, getBeginContexts(classes, position))
+                    >= threshold;
+            canEnd[position + 1] = getProbability(endCounts, endContextCounts, getEndContexts(classes, position + 1))
+                    >= threshold;
+        }
+
+        boolean[] closedCells = new boolean[chart.numCells()];
+        for (int i = 0; i < length; i++) {
+            for (int j = i + 2; j <= length; j++) {
+                closedCells[chart.cellIndex(i, j)] = !canBegin[i] || !canEnd[j];
+            }
+        }
+        return closedCells;
+    }
+
+    private static double getProbability(Counter<String> counts, Counter<String> contextCounts, String[] contexts) {
+        for (String context : contexts) {
+            final double contextCount = contextCounts.getCount(context);
+            if (contextCount >= MIN_CONTEXT_COUNT) {
+                return counts.getCount(context) / contextCount;
+            }
+        }
+        // never close a cell on too little evidence
+        return 1.0;
+    }
+
+    private String[] getWordClasses(List<String> words) {
+        String[] classes = new String[words.size()];
+        for (int k = 0; k < words.size(); k++) {
+            String word = words.get(k);
+            classes[k] = (lexicon.getWordCount(word) >= MIN_WORD_COUNT ? word : Lexicon.getSignature(word));
+        }
+        return classes;
+    }
+
+    /**
+     * Returns the contexts of a constituent beginning with the word at position, from the most to the least specific.
+     */
+    private static String[] getBeginContexts(String[] classes, int position) {
+        String previous = (position == 0 ? BOUNDARY : classes[position - 1]);
+        return new String[] { previous + " [" + classes[position], "[" + classes[position] };
+    }
+
+    /**
+     * Returns the contexts of a constituent ending before position, from the most to the least specific.
+     */
+    private static String[] getEndContexts(String[] classes, int position) {
+        String next = (position == classes.length ? BOUNDARY : classes[position]);
+        return new String[] { classes[position - 1] + "] " + next, classes[position - 1] + "]" };
+    }
+}
@@ -0,0 +1,147 @@
+package nlp.assignments.parsing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nlp.ling.Tree;
+import nlp.util.Indexer;
+
+/**
+ * Parses with a sequence of grammars projected from the grammar of a fine parser, from coarse to fine.  Each coarse
+ * pass computes the posteriors of its items, and the next pass only builds the refinements of the items whose log
+ * posterior is at least -threshold.  The final pass uses the fine parser, so the result is a parse of the fine
+ * grammar.
+ */
+class CoarseToFineParser implements Parser {
+
+    /**
+     * Reduces every label to its base symbol, as Trees.FunctionNodeStripper does: everything from the first -, = or ^
+     * on is cut off, so @NP->_DT_JJ becomes @NP and NP^S becomes NP.
+     */
+    static class AnnotationStripper implements LabelProjection {
+        public String project(String label) {
+            int cutIndex = label.length();
+            for (char c : new char[] { '-', '=', '^' }) {
+                int index = label.indexOf(c);
+                if (index > 0 && index < cutIndex) {
+                    cutIndex = index;
+                }
+            }
+            return label.substring(0, cutIndex);
+        }
+    }
+
+    /**
+     * Removes the horizontal Markov history from intermediate symbols, so @NP->_DT_JJ becomes @NP->, but keeps all
+     * other annotations.
+     */
+    static class MarkovHistoryStripper implements LabelProjection {
+        public String project(String label) {
+            int cutIndex = label.indexOf("->");
+            if (!label.startsWith("@") || cutIndex < 0) {
+                return label;
+            }
+            return label.substring(0, cutIndex + 2);
+        }
+    }
+
+    /**
+     * Keeps only the last order symbols of the horizontal Markov history of intermediate symbols, so with order 1
+     * @NP->_DT_JJ becomes @NP->_JJ, and keeps all other labels.
+     */
+    static class MarkovHistoryTruncation implements LabelProjection {
+        final int order;
+
+        MarkovHistoryTruncation(int order) {
+            this.order = order;
+        }
+
+        public String project(String label) {
+            int cutIndex = label.indexOf("->");
+            if (!label.startsWith("@") || cutIndex < 0) {
+                return label;
+            }
+            int historyIndex = label.length();
+            for (int k = 0; k < order; k++) {
+                historyIndex = label.lastIndexOf('_', historyIndex - 1);
+                if (historyIndex <= cutIndex + 2) {
+                    return label;
+                }
+            }
+            return label.substring(0, cutIndex + 2) + label.substring(historyIndex);
+        }
+    }
+
+    // levels.get(0) is the coarsest parser and the last level is the fine parser, with an inside-outside engine for
+    // every coarse level. projections.get(k) maps the states of level k + 1 to those of level k
+    final List<BaselineCkyParser> levels = new ArrayList<BaselineCkyParser>();
+    final List<InsideOutside> posteriors = new ArrayList<InsideOutside>();
+    final List<int[]> projections = new ArrayList<int[]>();
+    final double threshold;
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        BaselineCkyParser.ProjectedItemMask mask = null;
+        for (int level = 0; level < levels.size() - 1; level++) {
+            InsideOutside insideOutside = posteriors.get(level);
+            BaselineCkyParser.Chart chart = insideOutside.compute(sentence, mask);
+            if (insideOutside.getLogProbability(chart) == Double.NEGATIVE_INFINITY) {
+                // the coarse pass lost the parse, so the finer passes are not restricted at all
+                mask = null;
+                continue;
+            }
+            mask = new BaselineCkyParser.ProjectedItemMask(projections.get(level), chart.numStates,
+                    insideOutside.getAllowedItems(chart, -threshold));
+        }
+
+        BaselineCkyParser fineParser = levels.get(levels.size() - 1);
+        BaselineCkyParser.Chart chart = fineParser.buildChart(sentence, mask);
+        if (mask != null && !fineParser.hasRoot(chart)) {
+            // pruning removed every parse of the fine grammar, so fall back to exhaustive parsing
+            chart = fineParser.buildChart(sentence, null);
+        }
+        return fineParser.annotator.unAnnotateTree(fineParser.traverseBackPointers(sentence, chart));
+    }
+
+    /**
+     * Returns the number of chart items kept over all passes since the last call.
+     */
+    public long getAndResetNumEdges() {
+        long numEdges = 0;
+        for (BaselineCkyParser parser : levels) {
+            numEdges += parser.getAndResetNumEdges();
+        }
+        return numEdges;
+    }
+
+    public double getLogScore(Tree<String> annotatedTree) {
+        return levels.get(levels.size() - 1).getLogScore(annotatedTree);
+    }
+
+    /**
+     * Builds a coarse parser for each projection of the fine parser's grammar and lexicon, ordered from coarse to fine.
+     * Every projection must also be a projection of the ones after it.
+     */
+    public CoarseToFineParser(BaselineCkyParser fineParser, List<LabelProjection> labelProjections, double threshold) {
+        this.threshold = threshold;
+
+        for (LabelProjection labelProjection : labelProjections) {
+            System.out.print("Projecting coarse grammar ... ");
+            BaselineCkyParser coarseParser = new BaselineCkyParser(fineParser, labelProjection, true, false);
+            System.out.println("done. (" + coarseParser.stateIndexer.size() + " states)");
+            levels.add(coarseParser);
+            posteriors.add(new InsideOutside(coarseParser));
+        }
+        levels.add(fineParser);
+
+        for (int level = 0; level < labelProjections.size(); level++) {
+            LabelProjection labelProjection = labelProjections.get(level);
+            Indexer<String> coarseStates = levels.get(level).stateIndexer;
+            Indexer<String> fineStates = levels.get(level + 1).stateIndexer;
+            int[] projection = new int[fineStates.size()];
+            for (int state = 0; state < fineStates.size(); state++) {
+                projection[state] = coarseStates.indexOf(labelProjection.project(fineStates.get(state)));
+            }
+            projections.add(projection);
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package nlp.assignments.parsing;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import nlp.ling.Tree;
 import nlp.util.CollectionUtils;
 import nlp.util.Counter;
+import nlp.util.Indexer;
+import nlp.util.MapFactory;
 
 /**
    * Simple implementation of a PCFG grammar, offering the ability to look up rules by their child symbols.  Rule
@@ -24,40 +33,134 @@ import nlp.util.Counter;
     Map<String, List<UnaryRule>> unaryRulesByParent = new HashMap<String, List<UnaryRule>>();
     List<UnaryRule> unaryRules = new ArrayList<UnaryRule>();
     Set<String> states = new HashSet<String>();
+    // A grammar read from a model or compacted from another one only builds the rule objects above from the compiled
+    // rules below once they are first asked for, since the parser never uses them
+    boolean hasRuleObjects = true;
+
+    // Compiled form of the rules above, addressed by state ids from the stateIndexer. Binary rules are grouped by their
+    // left child and unary rules by their child: the rules for child c are the ids in [offsets[c], offsets[c + 1]).
+    // Rule id k refers to the same rule as binaryRules.get(k) and unaryRules.get(k).
+    Indexer<String> stateIndexer = new Indexer<String>();
+    int[] binaryRuleParents;
+    int[] binaryRuleLeftChildren;
+    int[] binaryRuleRightChildren;
+    double[] binaryRuleScores;
+    int[] binaryRulesByLeftChildOffsets;
+    // Binary rule ids grouped by parent: those for parent p are binaryRuleIdsByParent[offsets[p]] up to offsets[p + 1]
+    int[] binaryRuleIdsByParent;
+    int[] binaryRulesByParentOffsets;
+    int[] unaryRuleParents;
+    int[] unaryRuleChildren;
+    double[] unaryRuleScores;
+    int[] unaryRulesByChildOffsets;
+    // The training counts of the rules, by rule id, which compact selects rules by. They are only read when a grammar is
+    // compacted, so a grammar read from a mapped model file reads them in place
+    DoubleBuffer binaryRuleCounts;
+    DoubleBuffer unaryRuleCounts;
 
     public List<BinaryRule> getBinaryRulesByLeftChild(String leftChild) {
+      indexRuleObjects();
       return CollectionUtils.getValueList(binaryRulesByLeftChild, leftChild);
     }
 
     public List<BinaryRule> getBinaryRulesByRightChild(String rightChild) {
+      indexRuleObjects();
       return CollectionUtils.getValueList(binaryRulesByRightChild, rightChild);
     }
 
     public List<BinaryRule> getBinaryRulesByParent(String parent) {
+      indexRuleObjects();
       return CollectionUtils.getValueList(binaryRulesByParent, parent);
     }
 
     public List<BinaryRule> getBinaryRules() {
+      indexRuleObjects();
       return binaryRules;
     }
 
     public List<UnaryRule> getUnaryRulesByChild(String child) {
+      indexRuleObjects();
       return CollectionUtils.getValueList(unaryRulesByChild, child);
     }
 
     public List<UnaryRule> getUnaryRulesByParent(String parent) {
+      indexRuleObjects();
       return CollectionUtils.getValueList(unaryRulesByParent, parent);
     }
 
     public List<UnaryRule> getUnaryRules() {
+      indexRuleObjects();
       return unaryRules;
     }
 
     public Set<String> getStates() {
+      indexRuleObjects();
       return states;
     }
 
+    /**
+     * Maps every state and preterminal tag of the grammar to its id.
+     */
+    public Indexer<String> getStateIndexer() {
+      return stateIndexer;
+    }
+
+    public int getNumStates() {
+      return stateIndexer.size();
+    }
+
+    /**
+     * Returns the ids 0 ... keys.length - 1 grouped by key, and fills offsets so that the ids with key c are at
+     * [offsets[c], offsets[c + 1]).  Ids whose key equals their excludedKeys entry are left out, if excludedKeys is
+     * given.
+     */
+    static int[] groupByKey(int[] keys, int[] excludedKeys, int[] offsets) {
+      final int numKeys = offsets.length - 1;
+      Arrays.fill(offsets, 0);
+      for (int id = 0; id < keys.length; id++) {
+        if (excludedKeys == null || keys[id] != excludedKeys[id]) {
+          offsets[keys[id] + 1]++;
+        }
+      }
+      for (int key = 0; key < numKeys; key++) {
+        offsets[key + 1] += offsets[key];
+      }
+      int[] ids = new int[offsets[numKeys]];
+      int[] next = Arrays.copyOf(offsets, numKeys);
+      for (int id = 0; id < keys.length; id++) {
+        if (excludedKeys == null || keys[id] != excludedKeys[id]) {
+          ids[next[keys[id]]++] = id;
+        }
+      }
+      return ids;
+    }
+
+    /**
+     * Returns the probability of parent -> leftChild rightChild, or 0 if the grammar has no such rule.
+     */
+    public double getBinaryScore(int parent, int leftChild, int rightChild) {
+      for (int rule = binaryRulesByLeftChildOffsets[leftChild]; rule < binaryRulesByLeftChildOffsets[leftChild + 1]; rule++) {
+        if (binaryRuleParents[rule] == parent && binaryRuleRightChildren[rule] == rightChild) {
+          return binaryRuleScores[rule];
+        }
+      }
+      return 0.0;
+    }
+
+    /**
+     * Returns the probability of parent -> child, or 0 if the grammar has no such rule.
+     */
+    public double getUnaryScore(int parent, int child) {
+      for (int rule = unaryRulesByChildOffsets[child]; rule < unaryRulesByChildOffsets[child + 1]; rule++) {
+        if (unaryRuleParents[rule] == parent) {
+          return unaryRuleScores[rule];
+        }
+      }
+      return 0.0;
+    }
+
     public String toString() {
+      indexRuleObjects();
       StringBuilder sb = new StringBuilder();
       List<String> ruleStrings = new ArrayList<String>();
       for (String parent : binaryRulesByParent.keySet()) {
@@ -95,13 +198,102 @@ import nlp.util.Counter;
       CollectionUtils.addToValueList(unaryRulesByChild, unaryRule.getChild(), unaryRule);
     }
 
+    /**
+     * The rule and symbol counts of a shard of the training trees. The counters keep their keys in the order they were
+     * first seen, so that merging the shards in order adds the keys in the same order as a sequential pass.
+     */
+    static class Tallies {
+      final Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>(new MapFactory.LinkedHashMapFactory<UnaryRule, Double>());
+      final Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>(new MapFactory.LinkedHashMapFactory<BinaryRule, Double>());
+      final Counter<String> symbolCounter = new Counter<String>(new MapFactory.LinkedHashMapFactory<String, Double>());
+      final Set<String> preTerminals = new HashSet<String>();
+    }
+
     public Grammar(List<Tree<String>> trainTrees) {
+      this(trainTrees, null, 1);
+    }
+
+    /**
+     * Estimates the grammar from numShards shards of the training trees tallied in parallel on the executor, which
+     * gives exactly the grammar of a sequential pass.
+     */
+    public Grammar(List<Tree<String>> trainTrees, ExecutorService executor, int numShards) {
+      Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>();
+      Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
+      Counter<String> symbolCounter = new Counter<String>();
+      Set<String> preTerminals = new HashSet<String>();
+      List<Tallies> shards = TrainingShards.process(trainTrees, executor, numShards, new TrainingShards.ShardTask<Tallies>() {
+        public Tallies process(List<Tree<String>> shard) {
+          Tallies tallies = new Tallies();
+          for (Tree<String> trainTree : shard) {
+            tallyTree(trainTree, tallies.symbolCounter, tallies.unaryRuleCounter, tallies.binaryRuleCounter, tallies.preTerminals);
+          }
+          return tallies;
+        }
+      });
+      for (Tallies tallies : shards) {
+        unaryRuleCounter.incrementAll(tallies.unaryRuleCounter);
+        binaryRuleCounter.incrementAll(tallies.binaryRuleCounter);
+        symbolCounter.incrementAll(tallies.symbolCounter);
+        preTerminals.addAll(tallies.preTerminals);
+      }
+      estimate(unaryRuleCounter, binaryRuleCounter, symbolCounter, preTerminals);
+    }
+
+    /**
+     * Projects the grammar onto coarser symbols. The count of every projected rule is the sum of the counts of the
+     * rules it is the projection of, which gives exactly the grammar estimated from the projected training trees. If
+     * maxScores is set, every projected rule scores the best score of those rules instead, so that no tree of the
+     * grammar scores more than its projection.
+     */
+    public Grammar(Grammar grammar, LabelProjection projection, boolean maxScores) {
       Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>();
       Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
       Counter<String> symbolCounter = new Counter<String>();
-      for (Tree<String> trainTree : trainTrees) {
-        tallyTree(trainTree, symbolCounter, unaryRuleCounter, binaryRuleCounter);
+      Counter<UnaryRule> maxUnaryScores = new Counter<UnaryRule>();
+      Counter<BinaryRule> maxBinaryScores = new Counter<BinaryRule>();
+      Set<String> preTerminals = new HashSet<String>();
+      Indexer<String> fineStates = grammar.stateIndexer;
+      for (int rule = 0; rule < grammar.binaryRuleParents.length; rule++) {
+        String parent = projection.project(fineStates.get(grammar.binaryRuleParents[rule]));
+        double count = grammar.binaryRuleCounts.get(rule);
+        BinaryRule binaryRule = new BinaryRule(parent,
+            projection.project(fineStates.get(grammar.binaryRuleLeftChildren[rule])),
+            projection.project(fineStates.get(grammar.binaryRuleRightChildren[rule])));
+        binaryRuleCounter.incrementCount(binaryRule, count);
+        symbolCounter.incrementCount(parent, count);
+        maxBinaryScores.setCount(binaryRule, Math.max(maxBinaryScores.getCount(binaryRule), grammar.binaryRuleScores[rule]));
       }
+      for (int rule = 0; rule < grammar.unaryRuleParents.length; rule++) {
+        String parent = projection.project(fineStates.get(grammar.unaryRuleParents[rule]));
+        double count = grammar.unaryRuleCounts.get(rule);
+        UnaryRule unaryRule = new UnaryRule(parent, projection.project(fineStates.get(grammar.unaryRuleChildren[rule])));
+        unaryRuleCounter.incrementCount(unaryRule, count);
+        symbolCounter.incrementCount(parent, count);
+        maxUnaryScores.setCount(unaryRule, Math.max(maxUnaryScores.getCount(unaryRule), grammar.unaryRuleScores[rule]));
+      }
+      // compile only adds the preterminals that are not in a rule, which are the projections of those of the grammar
+      for (String state : fineStates) {
+        preTerminals.add(projection.project(state));
+      }
+      estimate(unaryRuleCounter, binaryRuleCounter, symbolCounter, preTerminals);
+      if (maxScores) {
+        for (int rule = 0; rule < binaryRules.size(); rule++) {
+          binaryRuleScores[rule] = maxBinaryScores.getCount(binaryRules.get(rule));
+          binaryRules.get(rule).setScore(binaryRuleScores[rule]);
+        }
+        for (int rule = 0; rule < unaryRules.size(); rule++) {
+          unaryRuleScores[rule] = maxUnaryScores.getCount(unaryRules.get(rule));
+          unaryRules.get(rule).setScore(unaryRuleScores[rule]);
+        }
+      }
+    }
+
+    /**
+     * Sets the rules to the relative frequencies of their counts given their parent, and compiles them.
+     */
+    private void estimate(Counter<UnaryRule> unaryRuleCounter, Counter<BinaryRule> binaryRuleCounter,
+        Counter<String> symbolCounter, Set<String> preTerminals) {
       for (UnaryRule unaryRule : unaryRuleCounter.keySet()) {
         double unaryProbability = unaryRuleCounter.getCount(unaryRule) / symbolCounter.getCount(unaryRule.getParent());
         unaryRule.setScore(unaryProbability);
@@ -112,11 +304,240 @@ import nlp.util.Counter;
         binaryRule.setScore(binaryProbability);
         addBinary(binaryRule);
       }
+      compile(preTerminals);
+      binaryRuleCounts = DoubleBuffer.allocate(binaryRules.size());
+      for (int rule = 0; rule < binaryRules.size(); rule++) {
+        binaryRuleCounts.put(rule, binaryRuleCounter.getCount(binaryRules.get(rule)));
+      }
+      unaryRuleCounts = DoubleBuffer.allocate(unaryRules.size());
+      for (int rule = 0; rule < unaryRules.size(); rule++) {
+        unaryRuleCounts.put(rule, unaryRuleCounter.getCount(unaryRules.get(rule)));
+      }
     }
 
-    private void tallyTree(Tree<String> tree, Counter<String> symbolCounter, Counter<UnaryRule> unaryRuleCounter, Counter<BinaryRule> binaryRuleCounter) {
+    /**
+     * Reads a grammar written by write, with the same state and rule ids.
+     */
+    public Grammar(DataInput in) throws IOException {
+      stateIndexer.addAll(ModelFormat.readStrings(in));
+      binaryRuleParents = ModelFormat.readInts(in);
+      binaryRuleLeftChildren = ModelFormat.readInts(in);
+      binaryRuleRightChildren = ModelFormat.readInts(in);
+      binaryRuleScores = ModelFormat.readDoubles(in);
+      binaryRuleCounts = ModelFormat.readDoubleView(in);
+      unaryRuleParents = ModelFormat.readInts(in);
+      unaryRuleChildren = ModelFormat.readInts(in);
+      unaryRuleScores = ModelFormat.readDoubles(in);
+      unaryRuleCounts = ModelFormat.readDoubleView(in);
+      // the rules were written grouped by child, so grouping them again only recovers the offsets
+      indexCompiledRules();
+    }
+
+    /**
+     * Returns the grammar of the rules of this one that were seen at least minCount times and that are among the most
+     * frequent rules making up minMass of the probability of their parent, with the probabilities of every parent
+     * renormalized over its remaining rules.  The most frequent rule of every parent is always kept, so no state that
+     * had rules loses them all.  The compacted grammar has the same states and state ids as this one.
+     */
+    public Grammar compact(double minCount, double minMass) {
+      // the binary rules of every parent, followed by its unary rules as ids offset by the number of binary rules
+      final int numBinaryRules = binaryRuleParents.length;
+      final int numStates = stateIndexer.size();
+      int[] ruleParents = new int[numBinaryRules + unaryRuleParents.length];
+      System.arraycopy(binaryRuleParents, 0, ruleParents, 0, numBinaryRules);
+      System.arraycopy(unaryRuleParents, 0, ruleParents, numBinaryRules, unaryRuleParents.length);
+      int[] rulesByParentOffsets = new int[numStates + 1];
+      int[] rulesByParent = groupByKey(ruleParents, null, rulesByParentOffsets);
+
+      boolean[] kept = new boolean[ruleParents.length];
+      double[] keptCounts = new double[numStates];
+      for (int parent = 0; parent < numStates; parent++) {
+        final int start = rulesByParentOffsets[parent];
+        final int end = rulesByParentOffsets[parent + 1];
+        Integer[] rules = new Integer[end - start];
+        double total = 0.0;
+        for (int k = start; k < end; k++) {
+          rules[k - start] = rulesByParent[k];
+          total += getRuleCount(rulesByParent[k]);
+        }
+        Arrays.sort(rules, new Comparator<Integer>() {
+          public int compare(Integer rule1, Integer rule2) {
+            return Double.compare(getRuleCount(rule2), getRuleCount(rule1));
+          }
+        });
+        for (int k = 0; k < rules.length; k++) {
+          final double count = getRuleCount(rules[k]);
+          if (k > 0 && (count < minCount || keptCounts[parent] >= minMass * total)) {
+            break;
+          }
+          kept[rules[k]] = true;
+          keptCounts[parent] += count;
+        }
+      }
+
+      // the kept rules keep their order, so they stay grouped by child
+      Grammar grammar = new Grammar(stateIndexer);
+      int numKeptBinaryRules = 0;
+      for (int rule = 0; rule < numBinaryRules; rule++) {
+        if (kept[rule]) {
+          numKeptBinaryRules++;
+        }
+      }
+      grammar.binaryRuleParents = new int[numKeptBinaryRules];
+      grammar.binaryRuleLeftChildren = new int[numKeptBinaryRules];
+      grammar.binaryRuleRightChildren = new int[numKeptBinaryRules];
+      grammar.binaryRuleScores = new double[numKeptBinaryRules];
+      grammar.binaryRuleCounts = DoubleBuffer.allocate(numKeptBinaryRules);
+      int keptRule = 0;
+      for (int rule = 0; rule < numBinaryRules; rule++) {
+        if (kept[rule]) {
+          grammar.binaryRuleParents[keptRule] = binaryRuleParents[rule];
+          grammar.binaryRuleLeftChildren[keptRule] = binaryRuleLeftChildren[rule];
+          grammar.binaryRuleRightChildren[keptRule] = binaryRuleRightChildren[rule];
+          grammar.binaryRuleCounts.put(keptRule, binaryRuleCounts.get(rule));
+          grammar.binaryRuleScores[keptRule++] = binaryRuleCounts.get(rule) / keptCounts[binaryRuleParents[rule]];
+        }
+      }
+      int numKeptUnaryRules = 0;
+      for (int rule = 0; rule < unaryRuleParents.length; rule++) {
+        if (kept[numBinaryRules + rule]) {
+          numKeptUnaryRules++;
+        }
+      }
+      grammar.unaryRuleParents = new int[numKeptUnaryRules];
+      grammar.unaryRuleChildren = new int[numKeptUnaryRules];
+      grammar.unaryRuleScores = new double[numKeptUnaryRules];
+      grammar.unaryRuleCounts = DoubleBuffer.allocate(numKeptUnaryRules);
+      keptRule = 0;
+      for (int rule = 0; rule < unaryRuleParents.length; rule++) {
+        if (kept[numBinaryRules + rule]) {
+          grammar.unaryRuleParents[keptRule] = unaryRuleParents[rule];
+          grammar.unaryRuleChildren[keptRule] = unaryRuleChildren[rule];
+          grammar.unaryRuleCounts.put(keptRule, unaryRuleCounts.get(rule));
+          grammar.unaryRuleScores[keptRule++] = unaryRuleCounts.get(rule) / keptCounts[unaryRuleParents[rule]];
+        }
+      }
+      grammar.indexCompiledRules();
+      return grammar;
+    }
+
+    private Grammar(Indexer<String> stateIndexer) {
+      this.stateIndexer = stateIndexer;
+    }
+
+    /**
+     * Returns the count of binary rule id, or of unary rule id - binaryRuleParents.length for larger ids.
+     */
+    private double getRuleCount(int id) {
+      return id < binaryRuleParents.length ? binaryRuleCounts.get(id) : unaryRuleCounts.get(id - binaryRuleParents.length);
+    }
+
+    /**
+     * Builds the offsets of the compiled rules, which are already grouped by child, and leaves the rule objects until
+     * they are asked for.
+     */
+    private void indexCompiledRules() {
+      hasRuleObjects = false;
+      final int numStates = stateIndexer.size();
+      binaryRulesByLeftChildOffsets = new int[numStates + 1];
+      groupByKey(binaryRuleLeftChildren, null, binaryRulesByLeftChildOffsets);
+      binaryRulesByParentOffsets = new int[numStates + 1];
+      binaryRuleIdsByParent = groupByKey(binaryRuleParents, null, binaryRulesByParentOffsets);
+      unaryRulesByChildOffsets = new int[numStates + 1];
+      groupByKey(unaryRuleChildren, null, unaryRulesByChildOffsets);
+    }
+
+    /**
+     * Builds the rule objects from the compiled rules, unless the grammar already has them.
+     */
+    private synchronized void indexRuleObjects() {
+      if (hasRuleObjects) {
+        return;
+      }
+      for (int rule = 0; rule < binaryRuleParents.length; rule++) {
+        BinaryRule binaryRule = new BinaryRule(stateIndexer.get(binaryRuleParents[rule]),
+            stateIndexer.get(binaryRuleLeftChildren[rule]), stateIndexer.get(binaryRuleRightChildren[rule]));
+        binaryRule.setScore(binaryRuleScores[rule]);
+        addBinary(binaryRule);
+      }
+      for (int rule = 0; rule < unaryRuleParents.length; rule++) {
+        UnaryRule unaryRule = new UnaryRule(stateIndexer.get(unaryRuleParents[rule]), stateIndexer.get(unaryRuleChildren[rule]));
+        unaryRule.setScore(unaryRuleScores[rule]);
+        addUnary(unaryRule);
+      }
+      hasRuleObjects = true;
+    }
+
+    /**
+     * Writes the states and the compiled rules.
+     */
+    public void write(DataOutput out) throws IOException {
+      ModelFormat.writeStrings(out, stateIndexer);
+      ModelFormat.writeInts(out, binaryRuleParents);
+      ModelFormat.writeInts(out, binaryRuleLeftChildren);
+      ModelFormat.writeInts(out, binaryRuleRightChildren);
+      ModelFormat.writeDoubles(out, binaryRuleScores);
+      ModelFormat.writeDoubles(out, binaryRuleCounts);
+      ModelFormat.writeInts(out, unaryRuleParents);
+      ModelFormat.writeInts(out, unaryRuleChildren);
+      ModelFormat.writeDoubles(out, unaryRuleScores);
+      ModelFormat.writeDoubles(out, unaryRuleCounts);
+    }
+
+    /**
+     * Assigns ids to all states and preterminals, and stores the rules in id-indexed arrays grouped by child, so that
+     * the parser never has to look up rules by their String symbols.
+     */
+    private void compile(Set<String> preTerminals) {
+      stateIndexer.addAll(CollectionUtils.sort(states));
+      stateIndexer.addAll(CollectionUtils.sort(preTerminals));
+      final int numStates = stateIndexer.size();
+
+      binaryRules = new ArrayList<BinaryRule>();
+      binaryRulesByLeftChildOffsets = new int[numStates + 1];
+      for (int state = 0; state < numStates; state++) {
+        binaryRulesByLeftChildOffsets[state] = binaryRules.size();
+        binaryRules.addAll(getBinaryRulesByLeftChild(stateIndexer.get(state)));
+      }
+      binaryRulesByLeftChildOffsets[numStates] = binaryRules.size();
+      binaryRuleParents = new int[binaryRules.size()];
+      binaryRuleLeftChildren = new int[binaryRules.size()];
+      binaryRuleRightChildren = new int[binaryRules.size()];
+      binaryRuleScores = new double[binaryRules.size()];
+      for (int rule = 0; rule < binaryRules.size(); rule++) {
+        BinaryRule binaryRule = binaryRules.get(rule);
+        binaryRuleParents[rule] = stateIndexer.indexOf(binaryRule.getParent());
+        binaryRuleLeftChildren[rule] = stateIndexer.indexOf(binaryRule.getLeftChild());
+        binaryRuleRightChildren[rule] = stateIndexer.indexOf(binaryRule.getRightChild());
+        binaryRuleScores[rule] = binaryRule.getScore();
+      }
+      binaryRulesByParentOffsets = new int[numStates + 1];
+      binaryRuleIdsByParent = groupByKey(binaryRuleParents, null, binaryRulesByParentOffsets);
+
+      unaryRules = new ArrayList<UnaryRule>();
+      unaryRulesByChildOffsets = new int[numStates + 1];
+      for (int state = 0; state < numStates; state++) {
+        unaryRulesByChildOffsets[state] = unaryRules.size();
+        unaryRules.addAll(getUnaryRulesByChild(stateIndexer.get(state)));
+      }
+      unaryRulesByChildOffsets[numStates] = unaryRules.size();
+      unaryRuleParents = new int[unaryRules.size()];
+      unaryRuleChildren = new int[unaryRules.size()];
+      unaryRuleScores = new double[unaryRules.size()];
+      for (int rule = 0; rule < unaryRules.size(); rule++) {
+        UnaryRule unaryRule = unaryRules.get(rule);
+        unaryRuleParents[rule] = stateIndexer.indexOf(unaryRule.getParent());
+        unaryRuleChildren[rule] = stateIndexer.indexOf(unaryRule.getChild());
+        unaryRuleScores[rule] = unaryRule.getScore();
+      }
+    }
+
+    private void tallyTree(Tree<String> tree, Counter<String> symbolCounter, Counter<UnaryRule> unaryRuleCounter, Counter<BinaryRule> binaryRuleCounter, Set<String> preTerminals) {
       if (tree.isLeaf()) return;
-      if (tree.isPreTerminal()) return;
+      if (tree.isPreTerminal()) {
+        preTerminals.add(tree.getLabel());
+        return;
+      }
       if (tree.getChildren().size() == 1) {
         UnaryRule unaryRule = makeUnaryRule(tree);
         symbolCounter.incrementCount(tree.getLabel(), 1.0);
@@ -131,7 +552,7 @@ import nlp.util.Counter;
         throw new RuntimeException("Attempted to construct a Grammar with an illegal tree (unbinarized?): " + tree);
       }
       for (Tree<String> child : tree.getChildren()) {
-        tallyTree(child, symbolCounter, unaryRuleCounter, binaryRuleCounter);
+        tallyTree(child, symbolCounter, unaryRuleCounter, binaryRuleCounter, preTerminals);
       }
     }
 
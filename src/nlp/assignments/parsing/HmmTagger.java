@@ -0,0 +1,202 @@
+package nlp.assignments.parsing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import nlp.ling.Tree;
+import nlp.util.Indexer;
+
+/**
+ * A bigram HMM tagger that narrows down the tags a parser considers for every word of a sentence.  The candidate tags
+ * of a word come from the tag dictionary, which is the compiled tag scores of the lexicon: the tags seen with a
+ * frequent word, or those of its signature for a rare or unknown one.  The lexicon scores are proportional to
+ * P(word|tag), so they serve as emission probabilities, and the transition probabilities are estimated from the tag
+ * sequences of the training trees.  Forward-backward then gives the posterior of every candidate tag, and only the
+ * tags whose posterior is within a beam of the best tag of the word are kept.
+ */
+class HmmTagger {
+
+    final Lexicon lexicon;
+    // tagIndices maps a state to its position among the tags, or -1 for the other states. Position numTags stands for
+    // the sentence boundary, before the first and after the last word
+    final int[] tagIndices;
+    final int numTags;
+    // transitions[previous * (numTags + 1) + next] is P(next tag | previous tag)
+    final double[] transitions;
+
+    HmmTagger(List<Tree<String>> annotatedTrainTrees, Lexicon lexicon, Indexer<String> stateIndexer) {
+        this.lexicon = lexicon;
+        tagIndices = getTagIndices(lexicon, stateIndexer);
+        numTags = countTags(tagIndices);
+
+        final int size = numTags + 1;
+        double[] bigramCounts = new double[size * size];
+        double[] unigramCounts = new double[size];
+        double total = 0.0;
+        for (Tree<String> tree : annotatedTrainTrees) {
+            int previous = numTags;
+            for (String tag : tree.getPreTerminalYield()) {
+                int next = tagIndices[stateIndexer.indexOf(tag)];
+                bigramCounts[previous * size + next] += 1.0;
+                unigramCounts[next] += 1.0;
+                previous = next;
+            }
+            bigramCounts[previous * size + numTags] += 1.0;
+            unigramCounts[numTags] += 1.0;
+            total += tree.getPreTerminalYield().size() + 1;
+        }
+
+        // the bigram estimate is smoothed with one pseudo count spread over the tags by their unigram distribution,
+        // so that no tag sequence becomes impossible
+        transitions = new double[size * size];
+        for (int previous = 0; previous < size; previous++) {
+            double previousCount = 0.0;
+            for (int next = 0; next < size; next++) {
+                previousCount += bigramCounts[previous * size + next];
+            }
+            for (int next = 0; next < size; next++) {
+                transitions[previous * size + next] = (bigramCounts[previous * size + next] + unigramCounts[next]
+                        / total) / (previousCount + 1.0);
+            }
+        }
+    }
+
+    /**
+     * Reads the transition probabilities written by write, for the same lexicon and states.
+     */
+    HmmTagger(DataInput in, Lexicon lexicon, Indexer<String> stateIndexer) throws IOException {
+        this.lexicon = lexicon;
+        tagIndices = getTagIndices(lexicon, stateIndexer);
+        numTags = countTags(tagIndices);
+        transitions = ModelFormat.readDoubles(in);
+        if (transitions.length != (numTags + 1) * (numTags + 1)) {
+            throw new IOException("The tagger does not match the tags of the lexicon");
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        ModelFormat.writeDoubles(out, transitions);
+    }
+
+    private static int[] getTagIndices(Lexicon lexicon, Indexer<String> stateIndexer) {
+        int[] tagIndices = new int[stateIndexer.size()];
+        int count = 0;
+        for (int state = 0; state < stateIndexer.size(); state++) {
+            tagIndices[state] = lexicon.getAllTags().contains(stateIndexer.get(state)) ? count++ : -1;
+        }
+        return tagIndices;
+    }
+
+    private static int countTags(int[] tagIndices) {
+        int count = 0;
+        for (int tagIndex : tagIndices) {
+            count = Math.max(count, tagIndex + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the tags of every word of the sentence whose posterior is at least exp(-beam) times that of the best tag
+     * of the word, with their lexicon scores.
+     */
+    Lexicon.TagScores[] getTags(List<String> sentence, double beam) {
+        final int length = sentence.size();
+        final int size = numTags + 1;
+        Lexicon.TagScores[] candidates = new Lexicon.TagScores[length];
+        for (int k = 0; k < length; k++) {
+            candidates[k] = lexicon.getTagScores(sentence.get(k));
+        }
+
+        // Forward pass, with every position rescaled to sum to one against underflow
+        double[][] forward = new double[length][];
+        for (int k = 0; k < length; k++) {
+            final Lexicon.TagScores tagScores = candidates[k];
+            forward[k] = new double[tagScores.size()];
+            double sum = 0.0;
+            for (int t = 0; t < tagScores.size(); t++) {
+                final int next = tagIndices[tagScores.getTag(t)];
+                double score = 0.0;
+                if (k == 0) {
+                    score = transitions[numTags * size + next];
+                } else {
+                    final Lexicon.TagScores previousTagScores = candidates[k - 1];
+                    for (int p = 0; p < previousTagScores.size(); p++) {
+                        score += forward[k - 1][p] * transitions[tagIndices[previousTagScores.getTag(p)] * size + next];
+                    }
+                }
+                forward[k][t] = score * tagScores.getScore(t);
+                sum += forward[k][t];
+            }
+            scale(forward[k], sum);
+        }
+
+        // Backward pass, rescaled the same way, since only the ratios between the tags of a word matter
+        double[][] backward = new double[length][];
+        for (int k = length - 1; k >= 0; k--) {
+            final Lexicon.TagScores tagScores = candidates[k];
+            backward[k] = new double[tagScores.size()];
+            double sum = 0.0;
+            for (int t = 0; t < tagScores.size(); t++) {
+                final int previous = tagIndices[tagScores.getTag(t)];
+                double score = 0.0;
+                if (k == length - 1) {
+                    score = transitions[previous * size + numTags];
+                } else {
+                    final Lexicon.TagScores nextTagScores = candidates[k + 1];
+                    for (int n = 0; n < nextTagScores.size(); n++) {
+                        score += transitions[previous * size + tagIndices[nextTagScores.getTag(n)]]
+                                * nextTagScores.getScore(n) * backward[k + 1][n];
+                    }
+                }
+                backward[k][t] = score;
+                sum += score;
+            }
+            scale(backward[k], sum);
+        }
+
+        Lexicon.TagScores[] tagScores = new Lexicon.TagScores[length];
+        for (int k = 0; k < length; k++) {
+            tagScores[k] = prune(candidates[k], forward[k], backward[k], beam);
+        }
+        return tagScores;
+    }
+
+    private static void scale(double[] scores, double sum) {
+        if (sum > 0.0) {
+            for (int t = 0; t < scores.length; t++) {
+                scores[t] /= sum;
+            }
+        }
+    }
+
+    private static Lexicon.TagScores prune(Lexicon.TagScores candidates, double[] forward, double[] backward,
+            double beam) {
+        double best = 0.0;
+        for (int t = 0; t < forward.length; t++) {
+            best = Math.max(best, forward[t] * backward[t]);
+        }
+        final double cutoff = best * Math.exp(-beam);
+        int count = 0;
+        for (int t = 0; t < forward.length; t++) {
+            if (forward[t] * backward[t] >= cutoff) {
+                count++;
+            }
+        }
+        if (count == forward.length) {
+            return candidates;
+        }
+
+        int[] tags = new int[count];
+        double[] scores = new double[count];
+        count = 0;
+        for (int t = 0; t < forward.length; t++) {
+            if (forward[t] * backward[t] >= cutoff) {
+                tags[count] = candidates.getTag(t);
+                scores[count++] = candidates.getScore(t);
+            }
+        }
+        return new Lexicon.TagScores(tags, scores);
+    }
+}
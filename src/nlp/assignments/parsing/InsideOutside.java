@@ -0,0 +1,267 @@
+package nlp.assignments.parsing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import nlp.math.DoubleArrays;
+import nlp.math.SloppyMath;
+
+/**
+ * Computes inside and outside scores over the chart of a log-domain BaselineCkyParser, and from them the posterior
+ * probability of every (span, symbol) item.  Scores are log probabilities summed with SloppyMath.logAdd, and they
+ * are kept in the chart's own arrays: scores and preUnaryScores hold the inside scores after and before the unary
+ * pass, outsideScores and preUnaryOutsideScores the matching outside scores.  The unary pass uses the sum-product
+ * closure of the unary rules, so that every closed rule sums over all unary chains from its parent to its child, and
+ * every item over all cycles through it, rather than taking their best path as the parser's closure does.
+ */
+class InsideOutside {
+
+    final BaselineCkyParser parser;
+    final int root;
+
+    // Log scores of the sum-product closure, indexed like the rules of the parser's closure, and the log score of the
+    // self-loop of every state, which is 0 unless the state is on a cycle of unary rules
+    final double[] closedRuleScores;
+    final double[] selfLoopScores;
+
+    InsideOutside(BaselineCkyParser parser) {
+        if (!parser.logDomain) {
+            throw new IllegalArgumentException("Inside-outside scores need a log-domain parser");
+        }
+        this.parser = parser;
+        this.root = parser.stateIndexer.indexOf("ROOT");
+
+        final UnaryClosure unaryClosure = parser.unaryClosure;
+        closedRuleScores = DoubleArrays.log(unaryClosure.computeSumScores(parser.grammar));
+        selfLoopScores = new double[parser.stateIndexer.size()];
+        for (int rule = 0; rule < closedRuleScores.length; rule++) {
+            if (unaryClosure.closedRuleParents[rule] == unaryClosure.closedRuleChildren[rule]) {
+                selfLoopScores[unaryClosure.closedRuleParents[rule]] = closedRuleScores[rule];
+            }
+        }
+    }
+
+    /**
+     * Builds a chart holding the inside and outside scores of all items of the sentence, restricted to the mask if
+     * there is one.
+     */
+    BaselineCkyParser.Chart compute(List<String> sentence, BaselineCkyParser.ProjectedItemMask mask) {
+        BaselineCkyParser.Chart chart = parser.newChart(sentence, mask);
+        for (int max = 1; max <= chart.length; max++) {
+            for (int min = max - 1; min >= 0; min--) {
+                computeInsideScores(chart, min, max);
+            }
+        }
+        computeOutsideScores(chart);
+        return chart;
+    }
+
+    /**
+     * Returns the log probability of the sentence, summed over all its parses.
+     */
+    double getLogProbability(BaselineCkyParser.Chart chart) {
+        if (root < 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return chart.get(0, chart.length, root);
+    }
+
+    /**
+     * Returns the posterior probability that state spans (i, j) after the unary pass.
+     */
+    double getPosterior(BaselineCkyParser.Chart chart, int i, int j, int state) {
+        int index = chart.cellOffset(i, j) + state;
+        return Math.exp(chart.scores[index] + chart.outsideScores[index] - getLogProbability(chart));
+    }
+
+    /**
+     * Returns the posterior probability that state spans (i, j) before the unary pass, i.e. built by a binary rule or
+     * as a preterminal.
+     */
+    double getPreUnaryPosterior(BaselineCkyParser.Chart chart, int i, int j, int state) {
+        int index = chart.cellOffset(i, j) + state;
+        return Math.exp(chart.preUnaryScores[index] + chart.preUnaryOutsideScores[index] - getLogProbability(chart));
+    }
+
+    /**
+     * Returns which items have a log posterior of at least minLogPosterior, before or after the unary pass, indexed
+     * like the chart.
+     */
+    boolean[] getAllowedItems(BaselineCkyParser.Chart chart, double minLogPosterior) {
+        final double[] scores = chart.scores;
+        final double[] preUnaryScores = chart.preUnaryScores;
+        final double[] outsideScores = chart.outsideScores;
+        final double[] preUnaryOutsideScores = chart.preUnaryOutsideScores;
+
+        boolean[] allowed = new boolean[chart.size()];
+        final double logProbability = getLogProbability(chart);
+        if (logProbability == Double.NEGATIVE_INFINITY) {
+            return allowed;
+        }
+        final double cutoff = logProbability + minLogPosterior;
+        for (int index = 0; index < allowed.length; index++) {
+            allowed[index] = scores[index] + outsideScores[index] >= cutoff
+                    || preUnaryScores[index] + preUnaryOutsideScores[index] >= cutoff;
+        }
+        return allowed;
+    }
+
+    private void computeInsideScores(BaselineCkyParser.Chart chart, int min, int max) {
+        final int numStates = chart.numStates;
+        final int[] binaryRuleParents = parser.grammar.binaryRuleParents;
+        final int[] binaryRuleRightChildren = parser.grammar.binaryRuleRightChildren;
+        final double[] binaryRuleScores = parser.binaryRuleScores;
+        final int[] binaryRulesByLeftChildOffsets = parser.grammar.binaryRulesByLeftChildOffsets;
+        final int[] closedRuleParents = parser.unaryClosure.closedRuleParents;
+        final double[] closedRuleScores = this.closedRuleScores;
+        final double[] selfLoopScores = this.selfLoopScores;
+        final int[] closedRulesByChild = parser.unaryClosure.closedRulesByChild;
+        final int[] closedRulesByChildOffsets = parser.unaryClosure.closedRulesByChildOffsets;
+        final double[] scores = chart.scores;
+        final double[] preUnaryScores = chart.preUnaryScores;
+        final int[] cellStates = chart.cellStates;
+
+        chart.openCell(min, max);
+        final int offset = chart.cellOffset(min, max);
+        final int cellIndex = chart.cellIndex(min, max);
+        final BaselineCkyParser.ProjectedItemMask mask = chart.mask;
+        if (chart.isClosed(cellIndex)) {
+            chart.collectCellStates(min, max);
+            return;
+        }
+
+        // Binary pass, summing over all rules and split points
+        for (int mid = min + 1; mid < max; mid++) {
+            final int leftOffset = chart.cellOffset(min, mid);
+            final int rightOffset = chart.cellOffset(mid, max);
+            final int numLeftChildren = chart.numCellStates[chart.cellIndex(min, mid)];
+            for (int k = 0; k < numLeftChildren; k++) {
+                final int leftChild = cellStates[leftOffset + k];
+                final double leftScore = scores[leftOffset + leftChild];
+
+                final int end = binaryRulesByLeftChildOffsets[leftChild + 1];
+                for (int rule = binaryRulesByLeftChildOffsets[leftChild]; rule < end; rule++) {
+                    final double rightScore = scores[rightOffset + binaryRuleRightChildren[rule]];
+                    if (rightScore == Double.NEGATIVE_INFINITY) {
+                        continue;
+                    }
+                    final int parent = binaryRuleParents[rule];
+                    if (mask != null && !mask.isAllowed(cellIndex, parent)) {
+                        continue;
+                    }
+                    final int index = offset + parent;
+                    scores[index] = SloppyMath.logAdd(scores[index], leftScore + rightScore + binaryRuleScores[rule]);
+                }
+            }
+        }
+
+        System.arraycopy(scores, offset, preUnaryScores, offset, numStates);
+
+        // Unary pass: every item keeps its own score times that of its cycles, plus those of its closed children
+        for (int state = 0; state < numStates; state++) {
+            if (selfLoopScores[state] != 0.0) {
+                scores[offset + state] = preUnaryScores[offset + state] + selfLoopScores[state];
+            }
+        }
+        for (int child = 0; child < numStates; child++) {
+            final double childScore = preUnaryScores[offset + child];
+            if (childScore == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+            for (int k = closedRulesByChildOffsets[child]; k < closedRulesByChildOffsets[child + 1]; k++) {
+                final int rule = closedRulesByChild[k];
+                final int parent = closedRuleParents[rule];
+                if (mask != null && !mask.isAllowed(cellIndex, parent)) {
+                    continue;
+                }
+                scores[offset + parent] = SloppyMath.logAdd(scores[offset + parent], childScore + closedRuleScores[rule]);
+            }
+        }
+
+        chart.collectCellStates(min, max);
+    }
+
+    private void computeOutsideScores(BaselineCkyParser.Chart chart) {
+        final int length = chart.length;
+        final int[] binaryRuleParents = parser.grammar.binaryRuleParents;
+        final int[] binaryRuleRightChildren = parser.grammar.binaryRuleRightChildren;
+        final double[] binaryRuleScores = parser.binaryRuleScores;
+        final int[] binaryRulesByLeftChildOffsets = parser.grammar.binaryRulesByLeftChildOffsets;
+        final int[] closedRuleChildren = parser.unaryClosure.closedRuleChildren;
+        final double[] closedRuleScores = this.closedRuleScores;
+        final double[] selfLoopScores = this.selfLoopScores;
+        final int[] closedRulesByParentOffsets = parser.unaryClosure.closedRulesByParentOffsets;
+        final double[] scores = chart.scores;
+        final double[] preUnaryScores = chart.preUnaryScores;
+        final int[] cellStates = chart.cellStates;
+
+        if (chart.outsideScores == null) {
+            chart.outsideScores = new double[scores.length];
+            chart.preUnaryOutsideScores = new double[scores.length];
+        }
+        final double[] outsideScores = chart.outsideScores;
+        final double[] preUnaryOutsideScores = chart.preUnaryOutsideScores;
+        Arrays.fill(outsideScores, 0, chart.size(), Double.NEGATIVE_INFINITY);
+        Arrays.fill(preUnaryOutsideScores, 0, chart.size(), Double.NEGATIVE_INFINITY);
+        if (getLogProbability(chart) == Double.NEGATIVE_INFINITY) {
+            return;
+        }
+        outsideScores[chart.cellOffset(0, length) + root] = 0.0;
+
+        for (int span = length; span >= 1; span--) {
+            for (int min = 0; min + span <= length; min++) {
+                final int max = min + span;
+                final int offset = chart.cellOffset(min, max);
+                final int numCellStates = chart.numCellStates[chart.cellIndex(min, max)];
+
+                // Unary pass: the items after the unary pass pass their outside scores to themselves, through their
+                // cycles, and to their closed children before the unary pass
+                for (int k = 0; k < numCellStates; k++) {
+                    final int parent = cellStates[offset + k];
+                    final double outsideScore = outsideScores[offset + parent];
+                    if (outsideScore == Double.NEGATIVE_INFINITY) {
+                        continue;
+                    }
+                    if (preUnaryScores[offset + parent] != Double.NEGATIVE_INFINITY) {
+                        preUnaryOutsideScores[offset + parent] = SloppyMath.logAdd(preUnaryOutsideScores[offset + parent],
+                                outsideScore + selfLoopScores[parent]);
+                    }
+                    for (int rule = closedRulesByParentOffsets[parent]; rule < closedRulesByParentOffsets[parent + 1]; rule++) {
+                        final int child = closedRuleChildren[rule];
+                        if (child == parent || preUnaryScores[offset + child] == Double.NEGATIVE_INFINITY) {
+                            continue;
+                        }
+                        preUnaryOutsideScores[offset + child] = SloppyMath.logAdd(preUnaryOutsideScores[offset + child],
+                                outsideScore + closedRuleScores[rule]);
+                    }
+                }
+
+                // Binary pass: the items before the unary pass pass their outside scores to both children
+                for (int mid = min + 1; mid < max; mid++) {
+                    final int leftOffset = chart.cellOffset(min, mid);
+                    final int rightOffset = chart.cellOffset(mid, max);
+                    final int numLeftChildren = chart.numCellStates[chart.cellIndex(min, mid)];
+                    for (int k = 0; k < numLeftChildren; k++) {
+                        final int leftChild = cellStates[leftOffset + k];
+                        final double leftScore = scores[leftOffset + leftChild];
+
+                        final int end = binaryRulesByLeftChildOffsets[leftChild + 1];
+                        for (int rule = binaryRulesByLeftChildOffsets[leftChild]; rule < end; rule++) {
+                            final int rightChild = binaryRuleRightChildren[rule];
+                            final double rightScore = scores[rightOffset + rightChild];
+                            final double parentOutsideScore = preUnaryOutsideScores[offset + binaryRuleParents[rule]];
+                            if (rightScore == Double.NEGATIVE_INFINITY || parentOutsideScore == Double.NEGATIVE_INFINITY) {
+                                continue;
+                            }
+                            final double outsideScore = parentOutsideScore + binaryRuleScores[rule];
+                            outsideScores[leftOffset + leftChild] = SloppyMath.logAdd(outsideScores[leftOffset + leftChild],
+                                    outsideScore + rightScore);
+                            outsideScores[rightOffset + rightChild] = SloppyMath.logAdd(
+                                    outsideScores[rightOffset + rightChild], outsideScore + leftScore);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package nlp.assignments.parsing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import nlp.ling.Tree;
+
+/**
+ * Extracts the k best derivations from a filled chart of a BaselineCkyParser, lazily as in algorithm 3 of Huang and
+ * Chiang's "Better k-best parsing".  Every item keeps the derivations it has found so far, best first, and a heap of
+ * candidate derivations.  Each candidate is an incoming edge plus one rank per child.  Taking the next derivation of
+ * an item only adds the successors of the one taken before it, which asks the children for just one more derivation
+ * each, so the k best cost little more than the best one.  The successors only advance a child if the children after
+ * it are at their best derivation, which reaches every rank vector of an edge from exactly one other, so that no
+ * candidate is added twice.
+ *
+ * The items are those of the chart: before the unary pass an item is a tag or built by a binary rule and split point,
+ * after it an item is its own pre-unary item or a closed unary rule over a pre-unary child.
+ */
+class KBestExtractor {
+
+    static final int PRE_UNARY = 0;
+    static final int POST_UNARY = 1;
+
+    static final Comparator<Derivation> BEST_FIRST = new Comparator<Derivation>() {
+        public int compare(Derivation derivation1, Derivation derivation2) {
+            return Double.compare(derivation2.score, derivation1.score);
+        }
+    };
+
+    /**
+     * A derivation of an item: incoming edge number edge of the item, with the ranks[c]-th best derivation of child c.
+     */
+    static class Derivation {
+
+        final Item item;
+        final int edge;
+        final int[] ranks;
+        final double score;
+
+        Derivation(Item item, int edge, int[] ranks, double score) {
+            this.item = item;
+            this.edge = edge;
+            this.ranks = ranks;
+            this.score = score;
+        }
+    }
+
+    /**
+     * An item of the chart together with its incoming edges and the derivations found so far.  Binary edges have a
+     * rule and a split point, unary edges a closed rule, or -1 for the item before the unary pass; a tag has a single
+     * edge without children.
+     */
+    static class Item {
+
+        final int layer;
+        final int i;
+        final int j;
+        final int state;
+        // null until the item is first asked for a derivation
+        List<int[]> edges;
+
+        final List<Derivation> derivations = new ArrayList<Derivation>();
+        final PriorityQueue<Derivation> candidates = new PriorityQueue<Derivation>(11, BEST_FIRST);
+
+        Item(int layer, int i, int j, int state) {
+            this.layer = layer;
+            this.i = i;
+            this.j = j;
+            this.state = state;
+        }
+    }
+
+    final BaselineCkyParser parser;
+    final List<String> sentence;
+    final BaselineCkyParser.Chart chart;
+
+    // The items asked for so far, in an open addressing table keyed by 2 * (cell offset + state) + layer, with
+    // NO_ITEM for empty slots. The table is at most half full.
+    static final long NO_ITEM = -1L;
+    long[] itemKeys = newItemKeys(64);
+    Item[] items = new Item[64];
+    int numItems = 0;
+
+    KBestExtractor(BaselineCkyParser parser, List<String> sentence, BaselineCkyParser.Chart chart) {
+        this.parser = parser;
+        this.sentence = sentence;
+        this.chart = chart;
+    }
+
+    /**
+     * Returns the annotated tree of the derivation of the given rank (0 is the best) of state over the whole
+     * sentence, or null if there are not that many derivations.
+     */
+    Tree<String> getParse(int state, int rank) {
+        Derivation derivation = getDerivation(getItem(POST_UNARY, 0, chart.length, state), rank);
+        return derivation == null ? null : buildTree(derivation);
+    }
+
+    Derivation getDerivation(Item item, int rank) {
+        if (item.edges == null) {
+            addEdges(item);
+        }
+        while (item.derivations.size() <= rank) {
+            if (!item.derivations.isEmpty()) {
+                addSuccessors(item, item.derivations.get(item.derivations.size() - 1));
+            }
+            if (item.candidates.isEmpty()) {
+                return null;
+            }
+            item.derivations.add(item.candidates.poll());
+        }
+        return item.derivations.get(rank);
+    }
+
+    private Item getItem(int layer, int i, int j, int state) {
+        final long key = 2L * (chart.cellOffset(i, j) + state) + layer;
+        int slot = findSlot(itemKeys, key);
+        if (itemKeys[slot] == key) {
+            return items[slot];
+        }
+        if (2 * (numItems + 1) > itemKeys.length) {
+            growItems();
+            slot = findSlot(itemKeys, key);
+        }
+        Item item = new Item(layer, i, j, state);
+        itemKeys[slot] = key;
+        items[slot] = item;
+        numItems++;
+        return item;
+    }
+
+    /**
+     * Returns the slot of key in the table, or the empty slot where it would go.
+     */
+    private static int findSlot(long[] keys, long key) {
+        final int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) * 0x9e3779b9 & mask;
+        while (keys[slot] != key && keys[slot] != NO_ITEM) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growItems() {
+        long[] oldKeys = itemKeys;
+        Item[] oldItems = items;
+        itemKeys = newItemKeys(2 * oldKeys.length);
+        items = new Item[2 * oldKeys.length];
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != NO_ITEM) {
+                final int newSlot = findSlot(itemKeys, oldKeys[slot]);
+                itemKeys[newSlot] = oldKeys[slot];
+                items[newSlot] = oldItems[slot];
+            }
+        }
+    }
+
+    private static long[] newItemKeys(int size) {
+        long[] keys = new long[size];
+        Arrays.fill(keys, NO_ITEM);
+        return keys;
+    }
+
+    /**
+     * Collects the incoming edges of the item whose children are in the chart, and makes the best derivation of each
+     * a candidate.
+     */
+    private void addEdges(Item item) {
+        final int index = chart.cellOffset(item.i, item.j) + item.state;
+        item.edges = new ArrayList<int[]>();
+        if (item.layer == POST_UNARY) {
+            if (chart.preUnaryScores[index] != chart.emptyScore) {
+                item.edges.add(new int[] { -1 });
+            }
+            final UnaryClosure unaryClosure = parser.unaryClosure;
+            final int end = unaryClosure.closedRulesByParentOffsets[item.state + 1];
+            for (int rule = unaryClosure.closedRulesByParentOffsets[item.state]; rule < end; rule++) {
+                final int child = unaryClosure.closedRuleChildren[rule];
+                if (child != item.state && chart.preUnaryScores[index - item.state + child] != chart.emptyScore) {
+                    item.edges.add(new int[] { rule });
+                }
+            }
+        } else if (item.j - item.i == 1) {
+            if (chart.preUnaryScores[index] != chart.emptyScore) {
+                item.edges.add(new int[] { -1 });
+            }
+        } else {
+            final Grammar grammar = parser.grammar;
+            final int end = grammar.binaryRulesByParentOffsets[item.state + 1];
+            for (int mid = item.i + 1; mid < item.j; mid++) {
+                for (int k = grammar.binaryRulesByParentOffsets[item.state]; k < end; k++) {
+                    final int rule = grammar.binaryRuleIdsByParent[k];
+                    if (chart.get(item.i, mid, grammar.binaryRuleLeftChildren[rule]) != chart.emptyScore
+                            && chart.get(mid, item.j, grammar.binaryRuleRightChildren[rule]) != chart.emptyScore) {
+                        item.edges.add(new int[] { rule, mid });
+                    }
+                }
+            }
+        }
+
+        for (int edge = 0; edge < item.edges.size(); edge++) {
+            addCandidate(item, edge, new int[getNumChildren(item)]);
+        }
+    }
+
+    /**
+     * Adds the derivations that differ from the given one by taking the next derivation of one child, for the last
+     * child and for every child before it whose later children are at rank 0. A rank vector is only reached from the
+     * one with its last nonzero rank decreased, so every candidate is added once.
+     */
+    private void addSuccessors(Item item, Derivation derivation) {
+        final int[] ranks = derivation.ranks;
+        for (int child = ranks.length - 1; child >= 0; child--) {
+            int[] successorRanks = ranks.clone();
+            successorRanks[child]++;
+            addCandidate(item, derivation.edge, successorRanks);
+            if (ranks[child] != 0) {
+                break;
+            }
+        }
+    }
+
+    private void addCandidate(Item item, int edge, int[] ranks) {
+        final boolean logDomain = parser.logDomain;
+        final int[] rule = item.edges.get(edge);
+        double score;
+        if (item.layer == POST_UNARY) {
+            score = (rule[0] < 0 ? (logDomain ? 0.0 : 1.0) : parser.closedRuleScores[rule[0]]);
+        } else if (ranks.length == 0) {
+            score = chart.preUnaryScores[chart.cellOffset(item.i, item.j) + item.state];
+        } else {
+            score = parser.binaryRuleScores[rule[0]];
+        }
+        for (int child = 0; child < ranks.length; child++) {
+            // the best derivation of every item has the Viterbi score in the chart, so only the children whose rank
+            // was increased need to look for more derivations
+            final Item childItem = getChild(item, edge, child);
+            double childScore;
+            if (ranks[child] == 0) {
+                final int childIndex = chart.cellOffset(childItem.i, childItem.j) + childItem.state;
+                childScore = (childItem.layer == PRE_UNARY ? chart.preUnaryScores : chart.scores)[childIndex];
+            } else {
+                Derivation childDerivation = getDerivation(childItem, ranks[child]);
+                if (childDerivation == null) {
+                    return;
+                }
+                childScore = childDerivation.score;
+            }
+            score = (logDomain ? score + childScore : score * childScore);
+        }
+        item.candidates.add(new Derivation(item, edge, ranks, score));
+    }
+
+    private int getNumChildren(Item item) {
+        if (item.layer == POST_UNARY) {
+            return 1;
+        }
+        return item.j - item.i == 1 ? 0 : 2;
+    }
+
+    private Item getChild(Item item, int edge, int child) {
+        final int[] rule = item.edges.get(edge);
+        if (item.layer == POST_UNARY) {
+            final int state = (rule[0] < 0 ? item.state : parser.unaryClosure.closedRuleChildren[rule[0]]);
+            return getItem(PRE_UNARY, item.i, item.j, state);
+        }
+        if (child == 0) {
+            return getItem(POST_UNARY, item.i, rule[1], parser.grammar.binaryRuleLeftChildren[rule[0]]);
+        }
+        return getItem(POST_UNARY, rule[1], item.j, parser.grammar.binaryRuleRightChildren[rule[0]]);
+    }
+
+    private Tree<String> buildTree(Derivation derivation) {
+        final Item item = derivation.item;
+        final int[] rule = item.edges.get(derivation.edge);
+        if (item.layer == POST_UNARY) {
+            Tree<String> child = buildTree(getDerivation(getChild(item, derivation.edge, 0), derivation.ranks[0]));
+            if (rule[0] < 0) {
+                return child;
+            }
+            List<String> path = parser.unaryClosure.getPath(rule[0]);
+            return parser.buildUnaryTree(path.subList(0, path.size() - 1), Collections.singletonList(child));
+        }
+
+        String label = parser.stateIndexer.get(item.state);
+        if (derivation.ranks.length == 0) {
+            return new Tree<String>(label, Collections.singletonList(new Tree<String>(sentence.get(item.i))));
+        }
+        List<Tree<String>> children = new ArrayList<Tree<String>>(2);
+        for (int child = 0; child < 2; child++) {
+            children.add(buildTree(getDerivation(getChild(item, derivation.edge, child), derivation.ranks[child])));
+        }
+        return new Tree<String>(label, children);
+    }
+}
@@ -0,0 +1,10 @@
+package nlp.assignments.parsing;
+
+/**
+ * Maps the symbols of an annotated grammar onto the symbols of a coarser grammar.
+ */
+interface LabelProjection {
+
+	public abstract String project(String label);
+
+}
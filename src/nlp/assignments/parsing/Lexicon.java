@@ -1,17 +1,74 @@
 package nlp.assignments.parsing;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import nlp.ling.Tree;
+import nlp.math.DoubleArrays;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.Indexer;
+import nlp.util.MapFactory;
 
 /**
    * Simple default implementation of a lexicon, which scores word, tag pairs with a smoothed estimate of
    * P(tag|word)/P(tag).
    */
   class Lexicon {
+    /**
+     * The tags a word can have with their nonzero scoreTagging values: the entries [offset, offset + size()) of parallel
+     * tables of tag ids, scores and log scores, which the lexicon's words share.
+     */
+    static class TagScores {
+      final IntBuffer tags;
+      final DoubleBuffer scores;
+      final DoubleBuffer logScores;
+      final int offset;
+      final int length;
+
+      TagScores(IntBuffer tags, DoubleBuffer scores, DoubleBuffer logScores, int offset, int length) {
+        this.tags = tags;
+        this.scores = scores;
+        this.logScores = logScores;
+        this.offset = offset;
+        this.length = length;
+      }
+
+      /**
+       * Holds the given tags and scores in tables of their own.
+       */
+      TagScores(int[] tags, double[] scores) {
+        this(IntBuffer.wrap(tags), DoubleBuffer.wrap(scores), DoubleBuffer.wrap(DoubleArrays.log(scores)), 0, tags.length);
+      }
+
+      int size() {
+        return length;
+      }
+
+      int getTag(int k) {
+        return tags.get(offset + k);
+      }
+
+      double getScore(int k) {
+        return scores.get(offset + k);
+      }
+
+      double getLogScore(int k) {
+        return logScores.get(offset + k);
+      }
+    }
+
     CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>();
     double totalTokens = 0.0;
     double totalWordTypes = 0.0;
@@ -19,22 +76,225 @@ import nlp.util.CounterMap;
     Counter<String> wordCounter = new Counter<String>();
     Counter<String> typeTagCounter = new Counter<String>();
 
+    // The tags of the first occurrence of every word type, by the signature of the word. Rare and unknown words take
+    // their tag distribution from their signature, unless it was seen for fewer than MIN_SIGNATURE_TYPES types
+    static final double MIN_SIGNATURE_TYPES = 10.0;
+    static final String[] SUFFIXES = { "ness", "ment", "ing", "ion", "ity", "ous", "ive", "ble", "est", "ed", "ly",
+        "er", "al", "ic", "s", "y" };
+    CounterMap<String, String> signatureToTagCounters = new CounterMap<String, String>();
+    Counter<String> signatureCounter = new Counter<String>();
+
+    // Compiled form of scoreTagging, with tag ids from the indexer passed to compile: an entry for every known word,
+    // one for the unknown words of every signature, and one shared by the unknown words of rare signatures. Entry e
+    // holds [entryOffsets[e], entryOffsets[e + 1]) of the flat tag tables, which entryTagScores[e] is the window on,
+    // the known words come first with their counts in knownWordCounts, and the tables of a loaded lexicon are views of
+    // the model file
+    Indexer<String> stateIndexer;
+    Map<String, Integer> knownWordEntries;
+    Map<String, Integer> signatureEntries;
+    int unknownWordEntry;
+    IntBuffer entryOffsets;
+    IntBuffer entryTags;
+    DoubleBuffer entryScores;
+    DoubleBuffer entryLogScores;
+    DoubleBuffer knownWordCounts;
+    TagScores[] entryTagScores;
+
     public Set<String> getAllTags() {
       return tagCounter.keySet();
     }
 
+    /**
+     * Returns whether the word was seen in training. A lexicon read from a model only has its compiled tables, and
+     * answers this and the other questions about words from them.
+     */
     public boolean isKnown(String word) {
-      return wordCounter.keySet().contains(word);
+      return wordCounter != null ? wordCounter.containsKey(word) : knownWordEntries.containsKey(word);
+    }
+
+    /**
+     * Returns the number of times the word was seen in training.
+     */
+    public double getWordCount(String word) {
+      if (wordCounter != null) {
+        return wordCounter.getCount(word);
+      }
+      Integer entry = knownWordEntries.get(word);
+      return entry == null ? 0.0 : knownWordCounts.get(entry);
+    }
+
+    /**
+     * Returns the tags of the word with their scores, once the lexicon has been compiled.
+     */
+    public TagScores getTagScores(String word) {
+      Integer entry = knownWordEntries.get(word);
+      if (entry == null) {
+        entry = signatureEntries.get(getSignature(word));
+      }
+      return entryTagScores[entry == null ? unknownWordEntry : entry];
+    }
+
+    /**
+     * Builds the window on the tag tables of every entry, once the tables are compiled or read.
+     */
+    private void indexEntries() {
+      entryTagScores = new TagScores[entryOffsets.limit() - 1];
+      for (int e = 0; e < entryTagScores.length; e++) {
+        int offset = entryOffsets.get(e);
+        entryTagScores[e] = new TagScores(entryTags, entryScores, entryLogScores, offset, entryOffsets.get(e + 1) - offset);
+      }
+    }
+
+    /**
+     * Maps a word to its class for unknown word scoring, built from its capitalization, digits, dashes and suffix,
+     * e.g. UNK-INITC-ing for "Banking" and UNK-NUM-DASH for "1989-90".
+     */
+    public static String getSignature(String word) {
+      boolean hasUpper = false;
+      boolean hasLower = false;
+      boolean hasDigit = false;
+      boolean hasDash = false;
+      for (int k = 0; k < word.length(); k++) {
+        char c = word.charAt(k);
+        hasUpper |= Character.isUpperCase(c);
+        hasLower |= Character.isLowerCase(c);
+        hasDigit |= Character.isDigit(c);
+        hasDash |= c == '-';
+      }
+      StringBuilder signature = new StringBuilder("UNK");
+      if (hasUpper) {
+        signature.append(!hasLower ? "-CAPS" : Character.isUpperCase(word.charAt(0)) ? "-INITC" : "-MIXEDC");
+      } else if (hasLower) {
+        signature.append("-LC");
+      }
+      if (hasDigit) {
+        signature.append("-NUM");
+      }
+      if (hasDash) {
+        signature.append("-DASH");
+      }
+      if (hasLower && word.length() >= 4) {
+        String lowerCaseWord = word.toLowerCase();
+        for (String suffix : SUFFIXES) {
+          if (lowerCaseWord.endsWith(suffix)) {
+            signature.append('-').append(suffix);
+            break;
+          }
+        }
+      }
+      return signature.toString();
+    }
+
+    /**
+     * Precomputes the nonzero scores of every known word and of unknown words, with tags identified by their index in
+     * stateIndexer.
+     */
+    public void compile(Indexer<String> stateIndexer) {
+      if (wordCounter == null) {
+        return; // read compiled
+      }
+      List<String> tags = new ArrayList<String>();
+      for (String state : stateIndexer) {
+        if (tagCounter.containsKey(state)) {
+          tags.add(state);
+        }
+      }
+      List<String> signatures = new ArrayList<String>();
+      for (String signature : signatureCounter.keySet()) {
+        if (signatureCounter.getCount(signature) >= MIN_SIGNATURE_TYPES) {
+          signatures.add(signature);
+        }
+      }
+      this.stateIndexer = stateIndexer;
+      int numEntries = wordCounter.size() + signatures.size() + 1;
+      int[] offsets = new int[numEntries + 1];
+      int[] tagIds = new int[numEntries * tags.size()];
+      double[] scores = new double[numEntries * tags.size()];
+      double[] counts = new double[wordCounter.size()];
+      knownWordEntries = new HashMap<String, Integer>();
+      for (String word : wordCounter.keySet()) {
+        int e = knownWordEntries.size();
+        knownWordEntries.put(word, e);
+        counts[e] = wordCounter.getCount(word);
+        offsets[e + 1] = compileEntry(counts[e], wordToTagCounters.getCounter(word), getSignature(word), tags, tagIds,
+            scores, offsets[e]);
+      }
+      signatureEntries = new HashMap<String, Integer>();
+      for (String signature : signatures) {
+        int e = counts.length + signatureEntries.size();
+        signatureEntries.put(signature, e);
+        offsets[e + 1] = compileEntry(0.0, new Counter<String>(), signature, tags, tagIds, scores, offsets[e]);
+      }
+      unknownWordEntry = numEntries - 1;
+      offsets[numEntries] = compileEntry(0.0, new Counter<String>(), null, tags, tagIds, scores,
+          offsets[unknownWordEntry]);
+      scores = Arrays.copyOf(scores, offsets[numEntries]);
+      entryOffsets = IntBuffer.wrap(offsets);
+      entryTags = IntBuffer.wrap(Arrays.copyOf(tagIds, offsets[numEntries]));
+      entryScores = DoubleBuffer.wrap(scores);
+      entryLogScores = DoubleBuffer.wrap(DoubleArrays.log(scores));
+      knownWordCounts = DoubleBuffer.wrap(counts);
+      indexEntries();
+    }
+
+    /**
+     * Appends the nonzero scores of a word with the given counts and signature to the tables at position, and returns
+     * the position after them.
+     */
+    private int compileEntry(double c_word, Counter<String> tagCounts, String signature, List<String> tags,
+        int[] tagIds, double[] scores, int position) {
+      for (String tag : tags) {
+        double score = scoreTagging(tag, c_word, tagCounts.getCount(tag), signature);
+        if (score != 0) {
+          tagIds[position] = stateIndexer.indexOf(tag);
+          scores[position++] = score;
+        }
+      }
+      return position;
     }
 
     public double scoreTagging(String word, String tag) {
-      double p_tag = tagCounter.getCount(tag) / totalTokens;
+      if (wordCounter == null) {
+        return scoreCompiledTagging(word, tag);
+      }
       double c_word = wordCounter.getCount(word);
-      double c_tag_and_word = wordToTagCounters.getCount(word, tag);
+      return scoreTagging(tag, c_word, wordToTagCounters.getCount(word, tag), c_word < 10 ? getSignature(word) : null);
+    }
+
+    /**
+     * Looks the score up in the compiled tables, for a lexicon read without its counts. Tags are identified by the
+     * states they index in the grammar the lexicon was compiled with.
+     */
+    private double scoreCompiledTagging(String word, String tag) {
+      int tagId = stateIndexer.indexOf(tag);
+      TagScores tagScores = getTagScores(word);
+      for (int k = 0; k < tagScores.size(); k++) {
+        if (tagScores.getTag(k) == tagId) {
+          return tagScores.getScore(k);
+        }
+      }
+      return 0.0;
+    }
+
+    /**
+     * Returns P(tag|new word type) for new words of the given signature, or for any new word if the signature is null
+     * or rare.
+     */
+    private double scoreNewTypeTagging(String tag, String signature) {
+      double c_signature = (signature == null ? 0.0 : signatureCounter.getCount(signature));
+      if (c_signature < MIN_SIGNATURE_TYPES) {
+        return typeTagCounter.getCount(tag) / totalWordTypes;
+      }
+      return signatureToTagCounters.getCount(signature, tag) / c_signature;
+    }
+
+    private double scoreTagging(String tag, double c_word, double c_tag_and_word, String signature) {
+      double p_tag = tagCounter.getCount(tag) / totalTokens;
       if (c_word < 10) { // rare or unknown
         c_word += 1.0;
-        // closed word classes will receive very low c_tag_and_word
-        c_tag_and_word += typeTagCounter.getCount(tag) / totalWordTypes;
+        // closed word classes will receive very low c_tag_and_word, and most others only get the tags seen with new
+        // words of the same signature
+        c_tag_and_word += scoreNewTypeTagging(tag, signature);
       }
       // add plus one smoothing
       double p_word = (1.0 + c_word) / (totalTokens + 1.0);
@@ -42,26 +302,212 @@ import nlp.util.CounterMap;
       return p_tag_given_word / p_tag * p_word;
     }
 
+    /**
+     * The counts of a shard of the training trees, with the tag of the first occurrence of every word type in the
+     * shard. The counters keep their keys in the order they were first seen, so that merging the shards in order adds
+     * the keys, and finds the first occurrence of every word type, in the same order as a sequential pass.
+     */
+    static class Tallies {
+      final CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>(
+          new MapFactory.LinkedHashMapFactory<String, Counter<String>>(), new MapFactory.LinkedHashMapFactory<String, Double>());
+      final Counter<String> tagCounter = new Counter<String>(new MapFactory.LinkedHashMapFactory<String, Double>());
+      final Counter<String> wordCounter = new Counter<String>(new MapFactory.LinkedHashMapFactory<String, Double>());
+      final Map<String, String> firstTags = new LinkedHashMap<String, String>();
+      double totalTokens = 0.0;
+
+      void tallyTagging(String word, String tag) {
+        if (!firstTags.containsKey(word)) {
+          firstTags.put(word, tag);
+        }
+        totalTokens += 1.0;
+        tagCounter.incrementCount(tag, 1.0);
+        wordCounter.incrementCount(word, 1.0);
+        wordToTagCounters.incrementCount(word, tag, 1.0);
+      }
+    }
+
     public Lexicon(List<Tree<String>> trainTrees) {
-      for (Tree<String> trainTree : trainTrees) {
-        List<String> words = trainTree.getYield();
-        List<String> tags = trainTree.getPreTerminalYield();
-        for (int position = 0; position < words.size(); position++) {
-          String word = words.get(position);
-          String tag = tags.get(position);
-          tallyTagging(word, tag);
+      this(trainTrees, null, 1);
+    }
+
+    /**
+     * Estimates the lexicon from numShards shards of the training trees tallied in parallel on the executor, which
+     * gives exactly the lexicon of a sequential pass.
+     */
+    public Lexicon(List<Tree<String>> trainTrees, ExecutorService executor, int numShards) {
+      List<Tallies> shards = TrainingShards.process(trainTrees, executor, numShards, new TrainingShards.ShardTask<Tallies>() {
+        public Tallies process(List<Tree<String>> shard) {
+          Tallies tallies = new Tallies();
+          for (Tree<String> trainTree : shard) {
+            List<String> words = trainTree.getYield();
+            List<String> tags = trainTree.getPreTerminalYield();
+            for (int position = 0; position < words.size(); position++) {
+              tallies.tallyTagging(words.get(position), tags.get(position));
+            }
+          }
+          return tallies;
+        }
+      });
+      for (Tallies tallies : shards) {
+        merge(tallies);
+      }
+    }
+
+    /**
+     * Reads the compiled tables written by write, with tags identified by their index in stateIndexer, which must be
+     * the indexer the lexicon was compiled with. The tables are views of the model file when it is mapped, and the
+     * lexicon keeps only the tag counts of its training counts.
+     */
+    public Lexicon(DataInput in, Indexer<String> stateIndexer) throws IOException {
+      this.stateIndexer = stateIndexer;
+      totalTokens = in.readDouble();
+      totalWordTypes = in.readDouble();
+      tagCounter = ModelFormat.readCounter(in);
+      wordCounter = null;
+      typeTagCounter = null;
+      wordToTagCounters = null;
+      signatureCounter = null;
+      signatureToTagCounters = null;
+      int numKnownWords = in.readInt();
+      knownWordEntries = new HashMap<String, Integer>(2 * numKnownWords);
+      for (int e = 0; e < numKnownWords; e++) {
+        knownWordEntries.put(in.readUTF(), e);
+      }
+      int numSignatures = in.readInt();
+      signatureEntries = new HashMap<String, Integer>(2 * numSignatures);
+      for (int e = numKnownWords; e < numKnownWords + numSignatures; e++) {
+        signatureEntries.put(in.readUTF(), e);
+      }
+      unknownWordEntry = numKnownWords + numSignatures;
+      knownWordCounts = ModelFormat.readDoubleView(in);
+      entryOffsets = ModelFormat.readIntView(in);
+      entryTags = ModelFormat.readIntView(in);
+      entryScores = ModelFormat.readDoubleView(in);
+      entryLogScores = ModelFormat.readDoubleView(in);
+      indexEntries();
+    }
+
+    /**
+     * Projects the compiled lexicon onto the coarser tags of coarseStateIndexer. A word scores P(word|tag), so a coarse
+     * tag scores the average of the scores of the tags it is the projection of, weighted by their counts, or their
+     * best score if maxScores is set. The projection has the entries of the lexicon and only compiled tables, like a
+     * lexicon read from a model.
+     */
+    public Lexicon(Lexicon lexicon, LabelProjection projection, Indexer<String> coarseStateIndexer, boolean maxScores) {
+      stateIndexer = coarseStateIndexer;
+      totalTokens = lexicon.totalTokens;
+      totalWordTypes = lexicon.totalWordTypes;
+      wordCounter = null;
+      typeTagCounter = null;
+      wordToTagCounters = null;
+      signatureCounter = null;
+      signatureToTagCounters = null;
+      for (String tag : lexicon.tagCounter.keySet()) {
+        tagCounter.incrementCount(projection.project(tag), lexicon.tagCounter.getCount(tag));
+      }
+      final int numFineStates = lexicon.stateIndexer.size();
+      int[] coarseTags = new int[numFineStates];
+      double[] weights = new double[numFineStates];
+      for (String tag : lexicon.tagCounter.keySet()) {
+        String coarseTag = projection.project(tag);
+        coarseTags[lexicon.stateIndexer.indexOf(tag)] = coarseStateIndexer.indexOf(coarseTag);
+        weights[lexicon.stateIndexer.indexOf(tag)] = lexicon.tagCounter.getCount(tag) / tagCounter.getCount(coarseTag);
+      }
+
+      knownWordEntries = lexicon.knownWordEntries;
+      signatureEntries = lexicon.signatureEntries;
+      unknownWordEntry = lexicon.unknownWordEntry;
+      knownWordCounts = lexicon.knownWordCounts;
+      final int numEntries = lexicon.entryTagScores.length;
+      final int numCoarseStates = coarseStateIndexer.size();
+      int[] offsets = new int[numEntries + 1];
+      int[] tagIds = new int[numEntries * tagCounter.size()];
+      double[] scores = new double[numEntries * tagCounter.size()];
+      double[] coarseScores = new double[numCoarseStates];
+      for (int e = 0; e < numEntries; e++) {
+        TagScores tagScores = lexicon.entryTagScores[e];
+        for (int k = 0; k < tagScores.size(); k++) {
+          final int tag = tagScores.getTag(k);
+          if (maxScores) {
+            coarseScores[coarseTags[tag]] = Math.max(coarseScores[coarseTags[tag]], tagScores.getScore(k));
+          } else {
+            coarseScores[coarseTags[tag]] += weights[tag] * tagScores.getScore(k);
+          }
         }
+        int position = offsets[e];
+        for (int state = 0; state < numCoarseStates; state++) {
+          if (coarseScores[state] != 0.0) {
+            tagIds[position] = state;
+            scores[position++] = coarseScores[state];
+            coarseScores[state] = 0.0;
+          }
+        }
+        offsets[e + 1] = position;
+      }
+      scores = Arrays.copyOf(scores, offsets[numEntries]);
+      entryOffsets = IntBuffer.wrap(offsets);
+      entryTags = IntBuffer.wrap(Arrays.copyOf(tagIds, offsets[numEntries]));
+      entryScores = DoubleBuffer.wrap(scores);
+      entryLogScores = DoubleBuffer.wrap(DoubleArrays.log(scores));
+      indexEntries();
+    }
+
+    /**
+     * Writes the tag counts and the compiled tables, so that a compiled lexicon has to be written.
+     */
+    public void write(DataOutput out) throws IOException {
+      if (entryOffsets == null) {
+        throw new IllegalStateException("Lexicon has to be compiled before it is written");
       }
+      out.writeDouble(totalTokens);
+      out.writeDouble(totalWordTypes);
+      ModelFormat.writeCounter(out, tagCounter);
+      writeEntryNames(out, knownWordEntries, 0);
+      writeEntryNames(out, signatureEntries, knownWordEntries.size());
+      ModelFormat.writeDoubles(out, knownWordCounts);
+      ModelFormat.writeInts(out, entryOffsets);
+      ModelFormat.writeInts(out, entryTags);
+      ModelFormat.writeDoubles(out, entryScores);
+      ModelFormat.writeDoubles(out, entryLogScores);
     }
 
-    private void tallyTagging(String word, String tag) {
-      if (!isKnown(word)) {
-        totalWordTypes += 1.0;
-        typeTagCounter.incrementCount(tag, 1.0);
+    /**
+     * Writes the names of the entries in the map, which are numbered from firstEntry on, in the order of their entries.
+     */
+    private static void writeEntryNames(DataOutput out, Map<String, Integer> entries, int firstEntry) throws IOException {
+      String[] names = new String[entries.size()];
+      for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+        names[entry.getValue() - firstEntry] = entry.getKey();
+      }
+      out.writeInt(names.length);
+      for (String name : names) {
+        out.writeUTF(name);
       }
-      totalTokens += 1.0;
-      tagCounter.incrementCount(tag, 1.0);
-      wordCounter.incrementCount(word, 1.0);
-      wordToTagCounters.incrementCount(word, tag, 1.0);
+    }
+
+    private void merge(Tallies tallies) {
+      // a word type is new if no earlier shard has seen it, and then its first occurrence is the first in this shard
+      for (Map.Entry<String, String> firstTag : tallies.firstTags.entrySet()) {
+        if (!isKnown(firstTag.getKey())) {
+          tallyNewType(firstTag.getKey(), firstTag.getValue());
+        }
+      }
+      totalTokens += tallies.totalTokens;
+      tagCounter.incrementAll(tallies.tagCounter);
+      wordCounter.incrementAll(tallies.wordCounter);
+      for (String word : tallies.wordToTagCounters.keySet()) {
+        Counter<String> tagCounts = tallies.wordToTagCounters.getCounter(word);
+        for (String tag : tagCounts.keySet()) {
+          wordToTagCounters.incrementCount(word, tag, tagCounts.getCount(tag));
+        }
+      }
+    }
+
+    private void tallyNewType(String word, String tag) {
+      totalWordTypes += 1.0;
+      typeTagCounter.incrementCount(tag, 1.0);
+      String signature = getSignature(word);
+      signatureCounter.incrementCount(signature, 1.0);
+      signatureToTagCounters.incrementCount(signature, tag, 1.0);
     }
   }
\ No newline at end of file
@@ -0,0 +1,123 @@
+package nlp.assignments.parsing;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a model file through a read-only memory mapping of it, so that the file is read from the page cache that all
+ * processes loading the same model share, without copying it through a stream buffer first.  Numbers and strings are
+ * read by DataInputStream from a stream over the mapping, and arrays are either handed out as views of the mapping by
+ * readIntView and readDoubleView, which copy nothing, or copied from it in bulk by readInts and readDoubles for the
+ * arrays the parser's inner loops index, which are faster as plain arrays.
+ */
+class MappedModelInput extends DataInputStream {
+
+    /**
+     * An input stream over the remaining bytes of a buffer, which leaves the buffer's position after the bytes read.
+     */
+    private static class BufferInputStream extends InputStream {
+
+        final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private final ByteBuffer buffer;
+
+    MappedModelInput(ByteBuffer buffer) {
+        super(new BufferInputStream(buffer));
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps the whole file at path. The mapping stays valid after the file is closed.
+     */
+    static MappedModelInput map(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return new MappedModelInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns a view of the next length ints of the mapping, and skips them.
+     */
+    IntBuffer readIntView(int length) throws IOException {
+        return skipView(4L * length).asIntBuffer();
+    }
+
+    /**
+     * Returns a view of the next length doubles of the mapping, and skips them.
+     */
+    DoubleBuffer readDoubleView(int length) throws IOException {
+        return skipView(8L * length).asDoubleBuffer();
+    }
+
+    int[] readInts(int length) throws IOException {
+        int[] values = new int[length];
+        readIntView(length).get(values);
+        return values;
+    }
+
+    double[] readDoubles(int length) throws IOException {
+        double[] values = new double[length];
+        readDoubleView(length).get(values);
+        return values;
+    }
+
+    /**
+     * Returns the next numBytes bytes of the mapping as a big-endian buffer of their own, and skips them.
+     */
+    private ByteBuffer skipView(long numBytes) throws EOFException {
+        if (numBytes < 0 || numBytes > buffer.remaining()) {
+            throw new EOFException("Model file is truncated");
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(view.position() + (int) numBytes);
+        view = view.slice().order(buffer.order());
+        buffer.position(buffer.position() + (int) numBytes);
+        return view;
+    }
+}
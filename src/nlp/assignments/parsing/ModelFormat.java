@@ -0,0 +1,143 @@
+package nlp.assignments.parsing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import nlp.util.Counter;
+
+/**
+ * The binary file format of trained models: a magic number and the format version, then the sections written by
+ * BaselineCkyParser.save.  Arrays are written as their length followed by their elements, and counters as their number
+ * of keys followed by key and count pairs, in the counter's order.  All numbers are big-endian, the byte order of
+ * both DataOutput and a ByteBuffer, so that the arrays can be read in place from a mapped model file, or copied from it in
+ * bulk.  Version 4 stores the lexicon as its compiled tag score tables rather than as the counts it is estimated from.
+ */
+class ModelFormat {
+
+    static final int MAGIC = 0x454c504c; // "ELPL"
+    static final int VERSION = 4;
+
+    static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    static void readHeader(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a model file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported model version " + version + ", expected " + VERSION);
+        }
+    }
+
+    static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static int[] readInts(DataInput in) throws IOException {
+        if (in instanceof MappedModelInput) {
+            return ((MappedModelInput) in).readInts(in.readInt());
+        }
+        int[] values = new int[in.readInt()];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = in.readInt();
+        }
+        return values;
+    }
+
+    static void writeInts(DataOutput out, IntBuffer values) throws IOException {
+        out.writeInt(values.limit());
+        for (int k = 0; k < values.limit(); k++) {
+            out.writeInt(values.get(k));
+        }
+    }
+
+    /**
+     * Reads an array written by writeInts as a view of the model file if it is mapped, and as a heap buffer otherwise.
+     */
+    static IntBuffer readIntView(DataInput in) throws IOException {
+        if (in instanceof MappedModelInput) {
+            return ((MappedModelInput) in).readIntView(in.readInt());
+        }
+        return IntBuffer.wrap(readInts(in));
+    }
+
+    static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static double[] readDoubles(DataInput in) throws IOException {
+        if (in instanceof MappedModelInput) {
+            return ((MappedModelInput) in).readDoubles(in.readInt());
+        }
+        double[] values = new double[in.readInt()];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = in.readDouble();
+        }
+        return values;
+    }
+
+    static void writeDoubles(DataOutput out, DoubleBuffer values) throws IOException {
+        out.writeInt(values.limit());
+        for (int k = 0; k < values.limit(); k++) {
+            out.writeDouble(values.get(k));
+        }
+    }
+
+    /**
+     * Reads an array written by writeDoubles as a view of the model file if it is mapped, and as a heap buffer
+     * otherwise.
+     */
+    static DoubleBuffer readDoubleView(DataInput in) throws IOException {
+        if (in instanceof MappedModelInput) {
+            return ((MappedModelInput) in).readDoubleView(in.readInt());
+        }
+        return DoubleBuffer.wrap(readDoubles(in));
+    }
+
+    static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    static List<String> readStrings(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<String>(size);
+        for (int k = 0; k < size; k++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    static void writeCounter(DataOutput out, Counter<String> counter) throws IOException {
+        out.writeInt(counter.size());
+        for (String key : counter.keySet()) {
+            out.writeUTF(key);
+            out.writeDouble(counter.getCount(key));
+        }
+    }
+
+    static Counter<String> readCounter(DataInput in) throws IOException {
+        Counter<String> counter = new Counter<String>();
+        int size = in.readInt();
+        for (int k = 0; k < size; k++) {
+            counter.setCount(in.readUTF(), in.readDouble());
+        }
+        return counter;
+    }
+}
@@ -1,7 +1,20 @@
 package nlp.assignments.parsing;
 
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import nlp.io.PennTreebankReader;
 import nlp.ling.Tree;
@@ -14,10 +27,22 @@ import nlp.util.*;
  */
 public class PCFGParserTester {
 
+  // Sentences read ahead per thread when parsing a stream in parallel
+  private static final int PIPELINE_DEPTH = 4;
+
   public static void main(String[] args) {
     // Parse command line flags and arguments
     Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
 
+    // Streaming mode parses whitespace-tokenized sentences, one per line, from a file or from stdin if none is given,
+    // and writes one bracketed tree per line. Only the trees go to stdout, so that the parser can sit in a pipeline
+    String parseInput = null;
+    PrintStream treeOutput = System.out;
+    if (argMap.containsKey("-parse")) {
+      parseInput = (argMap.get("-parse") == null ? "-" : argMap.get("-parse"));
+      System.setOut(System.err);
+    }
+
     // Set up default parameters and settings
     String basePath = "data";
     boolean verbose = true;
@@ -48,7 +73,7 @@ public class PCFGParserTester {
     }
     System.out.println("Maximum length for training sentences: " + maxTrainLength);
     if (argMap.containsKey("-maxTestLength")) {
-      maxTrainLength = Integer.parseInt(argMap.get("-maxTestLength"));
+      maxTestLength = Integer.parseInt(argMap.get("-maxTestLength"));
     }
     System.out.println("Maximum length for test sentences: " + maxTestLength);
     if (argMap.containsKey("-verbose")) {
@@ -57,16 +82,103 @@ public class PCFGParserTester {
     if (argMap.containsKey("-quiet")) {
       verbose = false;
     }
+    // A* search for the Viterbi parse, with outside estimates precomputed for contexts of up to aStarLength - 1 words
+    int aStarLength = 0;
+    if (argMap.containsKey("-astar")) {
+      String length = argMap.get("-astar");
+      aStarLength = (length == null ? 40 : Integer.parseInt(length));
+      System.out.println("Parsing with A* search, estimates for contexts below " + aStarLength + " words.");
+    }
+    // scoring in the log domain avoids underflow, which is needed for test sentences longer than about 30 words
+    boolean logDomain = argMap.containsKey("-log-domain") || aStarLength > 0;
+    if (logDomain) {
+      System.out.println("Parsing with log-domain scores.");
+    }
+    int numThreads = 1;
+    if (argMap.containsKey("-threads")) {
+      numThreads = Integer.parseInt(argMap.get("-threads"));
+      System.out.println("Parsing with " + numThreads + " threads.");
+    }
+    // threads used to annotate the training trees and count the grammar and lexicon, which gives the same model as one
+    int trainThreads = 1;
+    if (argMap.containsKey("-train-threads")) {
+      trainThreads = Integer.parseInt(argMap.get("-train-threads"));
+      System.out.println("Training with " + trainThreads + " threads.");
+    }
+    // threads used to fill the chart of a single sentence, for sentences of at least cellMinLength words
+    int cellThreads = 1;
+    int cellMinLength = 20;
+    if (argMap.containsKey("-cell-threads")) {
+      cellThreads = Integer.parseInt(argMap.get("-cell-threads"));
+    }
+    if (argMap.containsKey("-cell-min-length")) {
+      cellMinLength = Integer.parseInt(argMap.get("-cell-min-length"));
+    }
+    // comma separated lists of per-cell beam sizes and log score thresholds, every combination is evaluated
+    List<String> beamSizes = Collections.singletonList(null);
+    List<String> pruningThresholds = Collections.singletonList(null);
+    if (argMap.containsKey("-beam-size")) {
+      beamSizes = Arrays.asList(argMap.get("-beam-size").split(","));
+    }
+    if (argMap.containsKey("-prune-threshold")) {
+      pruningThresholds = Arrays.asList(argMap.get("-prune-threshold").split(","));
+    }
+    // comma separated lists of minimum rule counts and per-parent probability masses the grammar is compacted to,
+    // every combination is evaluated
+    List<String> minRuleCounts = Collections.singletonList(null);
+    List<String> ruleMasses = Collections.singletonList(null);
+    if (argMap.containsKey("-min-rule-count")) {
+      minRuleCounts = Arrays.asList(argMap.get("-min-rule-count").split(","));
+    }
+    if (argMap.containsKey("-rule-mass")) {
+      ruleMasses = Arrays.asList(argMap.get("-rule-mass").split(","));
+    }
+    // coarse-to-fine parsing through 1 (base symbols) or 2 (base symbols, then no Markov history) projected grammars
+    int coarseToFineLevels = 0;
+    double coarseToFineThreshold = 10.0;
+    if (argMap.containsKey("-coarse-to-fine")) {
+      String levels = argMap.get("-coarse-to-fine");
+      coarseToFineLevels = (levels == null ? 1 : Integer.parseInt(levels));
+    }
+    if (argMap.containsKey("-c2f-threshold")) {
+      coarseToFineThreshold = Double.parseDouble(argMap.get("-c2f-threshold"));
+    }
+    if (coarseToFineLevels > 0) {
+      System.out.println("Parsing coarse-to-fine with " + coarseToFineLevels + " coarse grammars and threshold " + coarseToFineThreshold);
+    }
+    // HMM tagger pre-pass that keeps the tags of every word within this log posterior beam of its best tag
+    double tagBeam = Double.POSITIVE_INFINITY;
+    if (argMap.containsKey("-tag-beam")) {
+      tagBeam = Double.parseDouble(argMap.get("-tag-beam"));
+      System.out.println("Restricting tags to a log posterior beam of " + tagBeam + " under the tagger.");
+    }
+    // closes the cells of spans where a multi-word constituent begins or ends with a lower probability than this
+    double cellThreshold = 0.0;
+    if (argMap.containsKey("-cell-constraints")) {
+      cellThreshold = Double.parseDouble(argMap.get("-cell-constraints"));
+      System.out.println("Closing cells whose spans begin or end a constituent with probability below " + cellThreshold + ".");
+    }
+    // a model saved by -saveModel replaces the training, and then the training trees are not read
+    String loadModelPath = argMap.get("-loadModel");
+    String saveModelPath = argMap.get("-saveModel");
+    if (cellThreads > 1) {
+      System.out.println("Filling charts of sentences with at least " + cellMinLength + " words with " + cellThreads + " threads.");
+    }
     
 
-    System.out.print("Loading training trees  ... ");
-    //TODO for initial experiments you may choose to load only a subset of the training section, 
-    // rather than entire section 2 - 22 (as standard)
-    List<Tree<String>> trainTrees = readTrees(basePath, 200, 2199, maxTrainLength);
-   
-    System.out.println("done. (" + trainTrees.size() + " trees)");
+    List<Tree<String>> trainTrees = null;
+    if (loadModelPath == null) {
+      System.out.print("Loading training trees  ... ");
+      //TODO for initial experiments you may choose to load only a subset of the training section, 
+      // rather than entire section 2 - 22 (as standard)
+      trainTrees = readTrees(basePath, 200, 2199, maxTrainLength);
+     
+      System.out.println("done. (" + trainTrees.size() + " trees)");
+    }
     List<Tree<String>> testTrees = null;
-    if (testMode.equalsIgnoreCase("validate")) {
+    if (parseInput != null) {
+      testTrees = Collections.emptyList();
+    } else if (testMode.equalsIgnoreCase("validate")) {
       
       System.out.print("Loading validation trees ... ");
       
@@ -78,7 +190,9 @@ public class PCFGParserTester {
       System.out.print("Loading test trees  ... ");
       testTrees = readTrees(basePath, 2300, 2399, maxTestLength);
     }
-    System.out.println("done. (" + testTrees.size() + " trees)");
+    if (parseInput == null) {
+      System.out.println("done. (" + testTrees.size() + " trees)");
+    }
 
     TreeAnnotator annotator;
     if (argMap.containsKey("-no-binarization")) {
@@ -95,9 +209,51 @@ public class PCFGParserTester {
     }
     
     // TODO : Fix the parser to support binary rules
-    Parser parser = new BaselineCkyParser(trainTrees, annotator);
+    BaselineCkyParser ckyParser;
+    if (loadModelPath != null) {
+      System.out.print("Loading model from " + loadModelPath + " ... ");
+      long startTime = System.currentTimeMillis();
+      ckyParser = loadModel(loadModelPath, annotator, logDomain);
+      System.out.println("done. (" + (System.currentTimeMillis() - startTime) + " ms)");
+    } else {
+      ckyParser = new BaselineCkyParser(trainTrees, annotator, logDomain, trainThreads);
+    }
+    if (saveModelPath != null) {
+      System.out.print("Saving model to " + saveModelPath + " ... ");
+      saveModel(ckyParser, saveModelPath);
+      System.out.println("done.");
+    }
+    if (cellThreads > 1) {
+      ckyParser.setCellParallelism(cellThreads, cellMinLength);
+    }
+    if (tagBeam < Double.POSITIVE_INFINITY) {
+      ckyParser.setTagPruning(tagBeam);
+    }
+    if (cellThreshold > 0.0) {
+      ckyParser.setCellConstraints(cellThreshold);
+    }
+    compactGrammar(ckyParser, minRuleCounts.get(0), ruleMasses.get(0));
+    Parser parser = ckyParser;
+    CoarseToFineParser coarseToFineParser = null;
+    if (coarseToFineLevels > 0) {
+      List<LabelProjection> projections = new ArrayList<LabelProjection>();
+      projections.add(new CoarseToFineParser.AnnotationStripper());
+      if (coarseToFineLevels > 1) {
+        projections.add(new CoarseToFineParser.MarkovHistoryStripper());
+      }
+      coarseToFineParser = new CoarseToFineParser(ckyParser, projections, coarseToFineThreshold);
+      parser = coarseToFineParser;
+    }
+    AStarParser aStarParser = null;
+    if (aStarLength > 0) {
+      aStarParser = new AStarParser(ckyParser, aStarLength);
+      parser = aStarParser;
+    }
 
-    if (argMap.containsKey("-scoring-mode")) {
+    if (parseInput != null) {
+      System.out.println("Parsing sentences from " + (parseInput.equals("-") ? "stdin" : parseInput) + " ...");
+      parseStream(parser, parseInput, treeOutput, numThreads);
+    } else if (argMap.containsKey("-scoring-mode")) {
     	double totLogProb = 0.;
     	System.out.println(" Scoring test trees ...");
     	int sentIdx = 0;
@@ -111,16 +267,76 @@ public class PCFGParserTester {
     	}
     	System.out.println("Total log prob: " + totLogProb);
     	
+    } else if (argMap.containsKey("-kbest")) {
+      // lists the scores of the k best parses of the first test sentences
+      int k = Integer.parseInt(argMap.get("-kbest"));
+      System.out.println(" Extracting " + k + "-best parses ...");
+      for (int sentIdx = 0; sentIdx < 10 && sentIdx < testTrees.size(); sentIdx++) {
+        long startTime = System.currentTimeMillis();
+        List<Tree<String>> parses = ckyParser.getKBestParses(testTrees.get(sentIdx).getYield(), k);
+        long time = System.currentTimeMillis() - startTime;
+        StringBuilder logScores = new StringBuilder();
+        for (Tree<String> parse : parses) {
+          logScores.append(" ").append((float) ckyParser.getLogScore(annotator.annotateTree(parse)));
+        }
+        System.out.println(sentIdx + ": " + parses.size() + " parses in " + time + " ms, logscores:" + logScores);
+      }
     } else {
-    	testParser(parser, testTrees, verbose);
+      boolean firstGrammar = true;
+      for (String minRuleCount : minRuleCounts) {
+        for (String ruleMass : ruleMasses) {
+          // the first grammar was compacted before the parsers around the CKY parser were built, and the A* estimates
+          // have to be recomputed for every other one
+          if (!firstGrammar) {
+            compactGrammar(ckyParser, minRuleCount, ruleMass);
+            if (aStarParser != null) {
+              aStarParser = new AStarParser(ckyParser, aStarLength);
+              parser = aStarParser;
+            }
+          }
+          firstGrammar = false;
+          for (String beamSize : beamSizes) {
+            for (String pruningThreshold : pruningThresholds) {
+              if (beamSize != null || pruningThreshold != null) {
+                ckyParser.setPruning(beamSize == null ? Integer.MAX_VALUE : Integer.parseInt(beamSize),
+                    pruningThreshold == null ? Double.POSITIVE_INFINITY : Double.parseDouble(pruningThreshold));
+                System.out.println("Pruning with beam size " + beamSize + ", threshold " + pruningThreshold);
+              }
+              long startTime = System.currentTimeMillis();
+              testParser(parser, testTrees, verbose, numThreads);
+              long numEdges = (coarseToFineParser != null ? coarseToFineParser.getAndResetNumEdges() : ckyParser.getAndResetNumEdges());
+              if (aStarParser != null) {
+                numEdges += aStarParser.getAndResetNumEdges();
+              }
+              System.out.println("Edges built: " + numEdges + ", parsing time: "
+                  + (System.currentTimeMillis() - startTime) / 1000.0 + " s");
+            }
+          }
+        }
+      }
     }
   }
 
-  private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose) {
+  private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose, int numThreads) {
     EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(Collections.singleton("ROOT"), new HashSet<String>(Arrays.asList(new String[]{"''", "``", ".", ":", ","})));
-    for (Tree<String> testTree : testTrees) {
-      List<String> testSentence = testTree.getYield();
-      Tree<String> guessedTree = parser.getBestParse(testSentence);
+    ExecutorService executor = null;
+    List<Future<Tree<String>>> guessedTrees = null;
+    if (numThreads > 1) {
+      // the sentences are parsed concurrently, but evaluated in input order, so that the output matches a sequential run
+      executor = Executors.newFixedThreadPool(numThreads);
+      guessedTrees = new ArrayList<Future<Tree<String>>>();
+      for (Tree<String> testTree : testTrees) {
+        guessedTrees.add(executor.submit(new ParseTask(parser, testTree.getYield())));
+      }
+    }
+    for (int i = 0; i < testTrees.size(); i++) {
+      Tree<String> testTree = testTrees.get(i);
+      Tree<String> guessedTree;
+      if (executor == null) {
+        guessedTree = parser.getBestParse(testTree.getYield());
+      } else {
+        guessedTree = getResult(guessedTrees.get(i));
+      }
       if (verbose) {
         System.out.println("Guess:\n" + Trees.PennTreeRenderer.render(guessedTree));
         System.out.println("Gold:\n" + Trees.PennTreeRenderer.render(testTree));
@@ -128,9 +344,205 @@ public class PCFGParserTester {
       eval.evaluate(guessedTree, testTree);
     }
     eval.display(true);
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Parses the sentences of the input, one per line, and prints the tree of each on its own line of output, in input
+   * order, as soon as it and all trees before it are done.  With several threads the trees are printed by a TreeWriter,
+   * so that they do not wait for the next line of input, and at most PIPELINE_DEPTH sentences per thread are read
+   * ahead, so memory does not grow with the input.
+   */
+  private static void parseStream(Parser parser, String input, PrintStream output, int numThreads) {
+    ExecutorService executor = (numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null);
+    BlockingQueue<Future<String>> pending = null;
+    TreeWriter writer = null;
+    Thread writerThread = null;
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(input.equals("-") ? new InputStreamReader(System.in) : new FileReader(input));
+      if (executor != null) {
+        pending = new ArrayBlockingQueue<Future<String>>(PIPELINE_DEPTH * numThreads);
+        writer = new TreeWriter(pending, output);
+        writerThread = new Thread(writer, "tree writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        List<String> sentence = tokenize(line);
+        if (executor == null) {
+          output.println(parseToString(parser, sentence));
+          output.flush();
+          continue;
+        }
+        pending.put(executor.submit(new StreamParseTask(parser, sentence)));
+      }
+      if (writer != null) {
+        pending.put(TreeWriter.END);
+        writerThread.join();
+        if (writer.failure != null) {
+          throw writer.failure;
+        }
+      }
+      output.flush();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (writerThread != null) {
+        writerThread.interrupt();
+      }
+      if (executor != null) {
+        executor.shutdown();
+      }
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // nothing left to read anyway
+        }
+      }
+    }
+  }
+
+  private static List<String> tokenize(String line) {
+    String trimmedLine = line.trim();
+    if (trimmedLine.length() == 0) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(trimmedLine.split("\\s+"));
+  }
+
+  /**
+   * Returns the best parse of the sentence as a single line, or the empty tree (()) for an empty line, so that every
+   * line of input gives one line of output.
+   */
+  private static String parseToString(Parser parser, List<String> sentence) {
+    if (sentence.isEmpty()) {
+      return "(())";
+    }
+    return parser.getBestParse(sentence).toString();
+  }
+
+  /**
+   * Prints the trees of a stream in input order on its own thread, each as soon as it and all trees before it are
+   * done, until it takes END from the queue.  After a failed parse the remaining trees are only taken from the queue,
+   * so that the reading thread never blocks on a full queue, and the failure is left for the reading thread to throw.
+   */
+  private static class TreeWriter implements Runnable {
+    static final Future<String> END = new FutureTask<String>(new Runnable() {
+      public void run() {
+      }
+    }, null);
+
+    private final BlockingQueue<Future<String>> pending;
+    private final PrintStream output;
+    volatile RuntimeException failure = null;
+
+    TreeWriter(BlockingQueue<Future<String>> pending, PrintStream output) {
+      this.pending = pending;
+      this.output = output;
+    }
+
+    public void run() {
+      try {
+        Future<String> tree;
+        while ((tree = pending.take()) != END) {
+          if (failure == null) {
+            try {
+              output.println(getResult(tree));
+              output.flush();
+            } catch (RuntimeException e) {
+              failure = e;
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        // the reading thread has given up on the stream
+      }
+    }
+  }
+
+  /**
+   * Parses a single sentence of the input stream on a worker thread.
+   */
+  private static class StreamParseTask implements Callable<String> {
+    private final Parser parser;
+    private final List<String> sentence;
+
+    StreamParseTask(Parser parser, List<String> sentence) {
+      this.parser = parser;
+      this.sentence = sentence;
+    }
+
+    public String call() {
+      return parseToString(parser, sentence);
+    }
+  }
+
+  /**
+   * Parses a single sentence on a worker thread.  The parser is shared between all workers, and only read.
+   */
+  private static class ParseTask implements Callable<Tree<String>> {
+    private final Parser parser;
+    private final List<String> sentence;
+
+    ParseTask(Parser parser, List<String> sentence) {
+      this.parser = parser;
+      this.sentence = sentence;
+    }
+
+    public Tree<String> call() {
+      return parser.getBestParse(sentence);
+    }
+  }
+
+  /**
+   * Compacts the parser's grammar to the given minimum rule count and per-parent mass, either of which may be null
+   * for no limit, and reports the size of the compacted grammar.
+   */
+  private static void compactGrammar(BaselineCkyParser parser, String minRuleCount, String ruleMass) {
+    if (minRuleCount == null && ruleMass == null) {
+      return;
+    }
+    parser.setRuleCompaction(minRuleCount == null ? 0.0 : Double.parseDouble(minRuleCount),
+        ruleMass == null ? 1.0 : Double.parseDouble(ruleMass));
+    System.out.println("Compacted grammar to rules seen at least " + minRuleCount + " times, mass " + ruleMass + ": "
+        + parser.grammar.binaryRuleParents.length + " binary, " + parser.grammar.unaryRuleParents.length + " unary rules (of "
+        + parser.trainedGrammar.binaryRuleParents.length + ", " + parser.trainedGrammar.unaryRuleParents.length + ")");
+  }
+
+  private static BaselineCkyParser loadModel(String path, TreeAnnotator annotator, boolean logDomain) {
+    try {
+      return BaselineCkyParser.load(path, annotator, logDomain);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void saveModel(BaselineCkyParser parser, String path) {
+    try {
+      parser.save(path);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
   }
 
-  private static List<Tree<String>> readTrees(String basePath, int low, int high, int maxLength) {
+  static List<Tree<String>> readTrees(String basePath, int low, int high, int maxLength) {
     Collection<Tree<String>> trees = PennTreebankReader.readTrees(basePath, low, high);
     // normalize trees
     Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
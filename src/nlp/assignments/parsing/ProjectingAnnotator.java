@@ -0,0 +1,43 @@
+package nlp.assignments.parsing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nlp.ling.Tree;
+
+/**
+ * Annotates trees like another annotator, and then projects all their non-terminal labels onto a coarser set of
+ * symbols.  Training a parser with it gives the projection of that annotator's grammar.
+ */
+class ProjectingAnnotator implements TreeAnnotator {
+
+	private final TreeAnnotator annotator;
+	private final LabelProjection projection;
+
+	public ProjectingAnnotator(TreeAnnotator annotator, LabelProjection projection) {
+		this.annotator = annotator;
+		this.projection = projection;
+	}
+
+	@Override
+	public Tree<String> annotateTree(Tree<String> unAnnotatedTree) {
+		return projectTree(annotator.annotateTree(unAnnotatedTree));
+	}
+
+	private Tree<String> projectTree(Tree<String> tree) {
+		if (tree.isLeaf()) {
+			return new Tree<String>(tree.getLabel());
+		}
+		List<Tree<String>> children = new ArrayList<Tree<String>>(tree.getChildren().size());
+		for (Tree<String> child : tree.getChildren()) {
+			children.add(projectTree(child));
+		}
+		return new Tree<String>(projection.project(tree.getLabel()), children);
+	}
+
+	@Override
+	public Tree<String> unAnnotateTree(Tree<String> annotatedTree) {
+		return annotator.unAnnotateTree(annotatedTree);
+	}
+
+}
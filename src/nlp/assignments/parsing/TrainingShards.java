@@ -0,0 +1,59 @@
+package nlp.assignments.parsing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import nlp.ling.Tree;
+
+/**
+ * Splits the training trees into contiguous shards that are processed in parallel.  The results come back in shard
+ * order, so merging them in that order sees the trees in the same order as a single sequential pass, and gives exactly
+ * the same counts.
+ */
+class TrainingShards {
+
+    /**
+     * Computes a result from the trees of one shard.
+     */
+    interface ShardTask<T> {
+        T process(List<Tree<String>> shard);
+    }
+
+    /**
+     * Returns the results of task on numShards contiguous shards of trees, in shard order.  Without an executor the
+     * trees form a single shard processed by the calling thread.
+     */
+    static <T> List<T> process(List<Tree<String>> trees, ExecutorService executor, int numShards,
+            final ShardTask<T> task) {
+        List<T> results = new ArrayList<T>();
+        if (executor == null || numShards <= 1) {
+            results.add(task.process(trees));
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int shard = 0; shard < numShards; shard++) {
+            final List<Tree<String>> shardTrees = trees.subList(
+                    (int) ((long) trees.size() * shard / numShards), (int) ((long) trees.size() * (shard + 1) / numShards));
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() {
+                    return task.process(shardTrees);
+                }
+            }));
+        }
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+}
@@ -1,6 +1,11 @@
 package nlp.assignments.parsing;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -10,59 +15,428 @@ import java.util.Set;
 
 import nlp.util.CollectionUtils;
 import nlp.util.Counter;
+import nlp.util.Indexer;
 
 /**
    * Calculates and provides accessors for the REFLEXIVE, TRANSITIVE closure of the unary rules in the provided Grammar.
-   * Each rule in this closure stands for zero or more unary rules in the original grammar.  Use the getPath() method to
-   * retrieve the full sequence of symbols (from parent to child) which support that path.
+   * Each rule in this closure stands for zero or more unary rules in the original grammar.  The closed rules are only
+   * kept in compiled form, as arrays over closed rule ids and state ids; use the getPath(int) method to retrieve the
+   * full sequence of symbols (from parent to child) which support a closed rule.
    */
   class UnaryClosure {
-    Map<String, List<UnaryRule>> closedUnaryRulesByChild = new HashMap<String, List<UnaryRule>>();
-    Map<String, List<UnaryRule>> closedUnaryRulesByParent = new HashMap<String, List<UnaryRule>>();
-    Map<UnaryRule, List<String>> pathMap = new HashMap<UnaryRule, List<String>>();
 
-    public List<UnaryRule> getClosedUnaryRulesByChild(String child) {
-      return CollectionUtils.getValueList(closedUnaryRulesByChild, child);
-    }
+    // Compiled form of the closed rules, addressed by state ids. The closed rules for parent p are the ids in
+    // [closedRulesByParentOffsets[p], closedRulesByParentOffsets[p + 1]).
+    // closedRulesByChild lists the ids of the rules other than self-loops by child, with the rules for child c at
+    // [closedRulesByChildOffsets[c], closedRulesByChildOffsets[c + 1]). The path of closed rule k is the states
+    // closedRulePaths[closedRulePathOffsets[k]] ... closedRulePaths[closedRulePathOffsets[k + 1] - 1]. The paths are only
+    // read to build the trees of parses, so a closure read from a mapped model file reads them in place.
+    Indexer<String> stateIndexer;
+    int[] closedRuleParents;
+    int[] closedRuleChildren;
+    double[] closedRuleScores;
+    int[] closedRulesByParentOffsets;
+    int[] closedRulesByChild;
+    int[] closedRulesByChildOffsets;
+    IntBuffer closedRulePaths;
+    IntBuffer closedRulePathOffsets;
 
-    public List<UnaryRule> getClosedUnaryRulesByParent(String parent) {
-      return CollectionUtils.getValueList(closedUnaryRulesByParent, parent);
-    }
+    // The paths while the matrix closure appends them
+    private int[] pathStates;
 
-    public List<String> getPath(UnaryRule unaryRule) {
-      return pathMap.get(unaryRule);
+    public List<String> getPath(int closedRule) {
+      final int start = closedRulePathOffsets.get(closedRule);
+      final int end = closedRulePathOffsets.get(closedRule + 1);
+      List<String> path = new ArrayList<String>(end - start);
+      for (int k = start; k < end; k++) {
+        path.add(stateIndexer.get(closedRulePaths.get(k)));
+      }
+      return path;
     }
 
     public String toString() {
       StringBuilder sb = new StringBuilder();
-      for (String parent : closedUnaryRulesByParent.keySet()) {
-        for (UnaryRule unaryRule : getClosedUnaryRulesByParent(parent)) {
-          List<String> path = getPath(unaryRule);
+      for (int rule = 0; rule < closedRuleParents.length; rule++) {
+        List<String> path = getPath(rule);
 //          if (path.size() == 2) continue;
-          sb.append(unaryRule);
-          sb.append("  ");
-          sb.append(path);
-          sb.append("\n");
-        }
+        sb.append(stateIndexer.get(closedRuleParents[rule])).append(" -> ").append(stateIndexer.get(closedRuleChildren[rule]))
+            .append(" %% ").append(closedRuleScores[rule]);
+        sb.append("  ");
+        sb.append(path);
+        sb.append("\n");
       }
       return sb.toString();
     }
 
+    /**
+     * Computes the closure over UnaryRule objects with computeUnaryClosure, and adds the states of the closed rules to
+     * the stateIndexer if they are not in it yet.  The parser uses the faster UnaryClosure(Grammar), which gives the
+     * same closed rules.
+     */
+    public UnaryClosure(Collection<UnaryRule> unaryRules, Indexer<String> stateIndexer) {
+      this.stateIndexer = stateIndexer;
+      compile(computeUnaryClosure(unaryRules));
+    }
+
     public UnaryClosure(Collection<UnaryRule> unaryRules) {
-      Map<UnaryRule, List<String>> closureMap = computeUnaryClosure(unaryRules);
-      for (UnaryRule unaryRule : closureMap.keySet()) {
-        addUnary(unaryRule, closureMap.get(unaryRule));
-      }
+      this(unaryRules, new Indexer<String>());
     }
 
+    /**
+     * Computes the closure of the grammar's compiled unary rules over state ids, straight into the compiled form.  This
+     * is the max-product Floyd-Warshall algorithm over a
+     * dense matrix from the states in unary rules to the states that are the child of one, which are few since most
+     * unary rules go from a binarization state to its head.  The matrix keeps for every pair the intermediate state of
+     * its best path, so that paths are recovered the same way as by computeUnaryClosure.
+     */
     public UnaryClosure(Grammar grammar) {
-      this(grammar.getUnaryRules());
+      stateIndexer = grammar.getStateIndexer();
+      final int numStates = stateIndexer.size();
+      final int[] unaryRuleParents = grammar.unaryRuleParents;
+      final int[] unaryRuleChildren = grammar.unaryRuleChildren;
+
+      // Row and column indices of the states in unary rules, and of the children of unary rules, in state id order
+      int[] rows = new int[numStates];
+      int[] columns = new int[numStates];
+      for (int rule = 0; rule < unaryRuleParents.length; rule++) {
+        rows[unaryRuleParents[rule]] = 1;
+        rows[unaryRuleChildren[rule]] = 1;
+        columns[unaryRuleChildren[rule]] = 1;
+      }
+      int[] rowStates = new int[numStates];
+      int[] columnStates = new int[numStates];
+      final int n = index(rows, rowStates);
+      final int m = index(columns, columnStates);
+
+      // scores[i * m + j] is the best score of a path from row i down to column j, and intermediates[i * m + j] the
+      // row of the state that path was last split at, or -1 for a single rule. Self-loops are left out until the end
+      double[] scores = new double[n * m];
+      int[] intermediates = new int[n * m];
+      Arrays.fill(intermediates, -1);
+      for (int rule = 0; rule < unaryRuleParents.length; rule++) {
+        if (unaryRuleParents[rule] != unaryRuleChildren[rule]) {
+          final int index = rows[unaryRuleParents[rule]] * m + columns[unaryRuleChildren[rule]];
+          scores[index] = Math.max(scores[index], grammar.unaryRuleScores[rule]);
+        }
+      }
+
+      // Only the children of unary rules with unary rules of their own can be intermediate states. Row and column k
+      // do not change while k is the intermediate state, so only their nonzero entries are visited
+      int[] parents = new int[n];
+      int[] children = new int[m];
+      for (int column = 0; column < m; column++) {
+        final int k = rows[columnStates[column]];
+        int numChildren = 0;
+        for (int j = 0; j < m; j++) {
+          if (scores[k * m + j] > 0.0) {
+            children[numChildren++] = j;
+          }
+        }
+        if (numChildren == 0) {
+          continue;
+        }
+        int numParents = 0;
+        for (int i = 0; i < n; i++) {
+          if (scores[i * m + column] > 0.0) {
+            parents[numParents++] = i;
+          }
+        }
+        for (int p = 0; p < numParents; p++) {
+          final int i = parents[p];
+          final double parentScore = scores[i * m + column];
+          for (int c = 0; c < numChildren; c++) {
+            final int j = children[c];
+            final double score = parentScore * scores[k * m + j];
+            if (rowStates[i] != columnStates[j] && score >= scores[i * m + j]) {
+              scores[i * m + j] = score;
+              intermediates[i * m + j] = k;
+            }
+          }
+        }
+      }
+
+      // Every row gets its self-loop first, then its closed rules in child order
+      int numClosedRules = n;
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j < m; j++) {
+          if (scores[i * m + j] > 0.0 && rowStates[i] != columnStates[j]) {
+            numClosedRules++;
+          }
+        }
+      }
+      closedRuleParents = new int[numClosedRules];
+      closedRuleChildren = new int[numClosedRules];
+      closedRuleScores = new double[numClosedRules];
+      int[] pathOffsets = new int[numClosedRules + 1];
+      pathStates = new int[2 * numClosedRules];
+      int rule = 0;
+      for (int i = 0; i < n; i++) {
+        closedRuleParents[rule] = rowStates[i];
+        closedRuleChildren[rule] = rowStates[i];
+        closedRuleScores[rule] = 1.0;
+        pathOffsets[rule + 1] = appendPathState(rowStates[i], pathOffsets[rule]);
+        rule++;
+        for (int j = 0; j < m; j++) {
+          if (scores[i * m + j] == 0.0 || rowStates[i] == columnStates[j]) {
+            continue;
+          }
+          closedRuleParents[rule] = rowStates[i];
+          closedRuleChildren[rule] = columnStates[j];
+          closedRuleScores[rule] = scores[i * m + j];
+          int length = appendPathState(rowStates[i], pathOffsets[rule]);
+          length = appendInnerPath(i, j, m, rows, rowStates, columns, intermediates, length);
+          pathOffsets[rule + 1] = appendPathState(columnStates[j], length);
+          rule++;
+        }
+      }
+      closedRulePaths = IntBuffer.wrap(Arrays.copyOf(pathStates, pathOffsets[numClosedRules]));
+      closedRulePathOffsets = IntBuffer.wrap(pathOffsets);
+      pathStates = null;
+
+      closedRulesByParentOffsets = new int[numStates + 1];
+      Grammar.groupByKey(closedRuleParents, null, closedRulesByParentOffsets);
+      closedRulesByChildOffsets = new int[numStates + 1];
+      closedRulesByChild = Grammar.groupByKey(closedRuleChildren, closedRuleParents, closedRulesByChildOffsets);
+    }
+
+    /**
+     * Numbers the marked states in id order, replacing each mark by the state's index, or -1 for unmarked states, and
+     * returns the number of marked states.
+     */
+    private static int index(int[] marks, int[] states) {
+      int count = 0;
+      for (int state = 0; state < marks.length; state++) {
+        if (marks[state] == 1) {
+          states[count] = state;
+          marks[state] = count++;
+        } else {
+          marks[state] = -1;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Appends the states strictly between row i and column j on their best path, and returns the new length of the
+     * paths.
+     */
+    private int appendInnerPath(int i, int j, int m, int[] rows, int[] rowStates, int[] columns, int[] intermediates,
+        int length) {
+      final int k = intermediates[i * m + j];
+      if (k < 0) {
+        return length;
+      }
+      length = appendInnerPath(i, columns[rowStates[k]], m, rows, rowStates, columns, intermediates, length);
+      length = appendPathState(rowStates[k], length);
+      return appendInnerPath(k, j, m, rows, rowStates, columns, intermediates, length);
+    }
+
+    private int appendPathState(int state, int length) {
+      if (length == pathStates.length) {
+        pathStates = Arrays.copyOf(pathStates, 2 * length);
+      }
+      pathStates[length] = state;
+      return length + 1;
+    }
+
+    /**
+     * Returns the sum-product closure of the grammar's unary rules for the closed rules of this max-product closure of
+     * the same grammar: the entries of (I - U)^-1, where U is the matrix of unary rule scores, so that the score of a
+     * closed rule is the total score of all unary chains from its parent to its child, and that of a self-loop is one
+     * plus the score of all cycles through its state.  Both closures have the same nonzero entries.
+     *
+     * As for the max-product closure, every chain of more than one rule only passes through states that are the parent
+     * and the child of unary rules, which are few.  With K those states, U_K the rules among them and M = (I - U_K)^-1,
+     * the entry of parent p and child c is [p = c] + U(p, c) + sum over a, b in K of U(p, a) M(a, b) U(b, c).
+     */
+    public double[] computeSumScores(Grammar grammar) {
+      final int numStates = stateIndexer.size();
+      final int[] unaryRuleParents = grammar.unaryRuleParents;
+      final int[] unaryRuleChildren = grammar.unaryRuleChildren;
+
+      int[] rows = new int[numStates];
+      int[] columns = new int[numStates];
+      for (int rule = 0; rule < unaryRuleParents.length; rule++) {
+        rows[unaryRuleParents[rule]] = 1;
+        columns[unaryRuleChildren[rule]] = 1;
+      }
+      int[] rowStates = new int[numStates];
+      int[] columnStates = new int[numStates];
+      final int n = index(rows, rowStates);
+      final int m = index(columns, columnStates);
+      double[] rules = new double[n * m];
+      for (int rule = 0; rule < unaryRuleParents.length; rule++) {
+        rules[rows[unaryRuleParents[rule]] * m + columns[unaryRuleChildren[rule]]] += grammar.unaryRuleScores[rule];
+      }
+
+      // The states in K as rows and columns of U, and I - U_K inverted by Gauss-Jordan elimination
+      int[] innerRows = new int[m];
+      int[] innerColumns = new int[m];
+      int k = 0;
+      for (int column = 0; column < m; column++) {
+        if (rows[columnStates[column]] >= 0) {
+          innerRows[k] = rows[columnStates[column]];
+          innerColumns[k++] = column;
+        }
+      }
+      double[] matrix = new double[k * k];
+      double[] inverse = new double[k * k];
+      for (int a = 0; a < k; a++) {
+        for (int b = 0; b < k; b++) {
+          matrix[a * k + b] = (a == b ? 1.0 : 0.0) - rules[innerRows[a] * m + innerColumns[b]];
+        }
+        inverse[a * k + a] = 1.0;
+      }
+      invert(matrix, inverse, k);
+
+      // sums[i * k + b] is the score of all chains from row i to state b of K, and the rules of row i give its entries
+      double[] sums = new double[n * k];
+      for (int i = 0; i < n; i++) {
+        for (int a = 0; a < k; a++) {
+          final double score = rules[i * m + innerColumns[a]];
+          if (score == 0.0) {
+            continue;
+          }
+          for (int b = 0; b < k; b++) {
+            sums[i * k + b] += score * inverse[a * k + b];
+          }
+        }
+      }
+      double[] scores = new double[closedRuleParents.length];
+      for (int rule = 0; rule < closedRuleParents.length; rule++) {
+        final int parent = closedRuleParents[rule];
+        final int child = closedRuleChildren[rule];
+        final int i = rows[parent];
+        final int j = columns[child];
+        double score = (parent == child ? 1.0 : 0.0);
+        if (i >= 0 && j >= 0) {
+          score += rules[i * m + j];
+          for (int b = 0; b < k; b++) {
+            score += sums[i * k + b] * rules[innerRows[b] * m + j];
+          }
+        }
+        scores[rule] = score;
+      }
+      return scores;
     }
 
-    private void addUnary(UnaryRule unaryRule, List<String> path) {
-      CollectionUtils.addToValueList(closedUnaryRulesByChild, unaryRule.getChild(), unaryRule);
-      CollectionUtils.addToValueList(closedUnaryRulesByParent, unaryRule.getParent(), unaryRule);
-      pathMap.put(unaryRule, path);
+    /**
+     * Turns the k by k identity in inverse into the inverse of matrix by Gauss-Jordan elimination with partial
+     * pivoting, which leaves matrix the identity.
+     */
+    private static void invert(double[] matrix, double[] inverse, int k) {
+      for (int column = 0; column < k; column++) {
+        int pivot = column;
+        for (int row = column + 1; row < k; row++) {
+          if (Math.abs(matrix[row * k + column]) > Math.abs(matrix[pivot * k + column])) {
+            pivot = row;
+          }
+        }
+        if (Math.abs(matrix[pivot * k + column]) < 1e-12) {
+          throw new IllegalStateException("The unary rules have cycles of total score one or more");
+        }
+        swapRows(matrix, pivot, column, k);
+        swapRows(inverse, pivot, column, k);
+        final double scale = 1.0 / matrix[column * k + column];
+        for (int b = 0; b < k; b++) {
+          matrix[column * k + b] *= scale;
+          inverse[column * k + b] *= scale;
+        }
+        for (int row = 0; row < k; row++) {
+          final double factor = matrix[row * k + column];
+          if (row == column || factor == 0.0) {
+            continue;
+          }
+          for (int b = 0; b < k; b++) {
+            matrix[row * k + b] -= factor * matrix[column * k + b];
+            inverse[row * k + b] -= factor * inverse[column * k + b];
+          }
+        }
+      }
+    }
+
+    private static void swapRows(double[] matrix, int row1, int row2, int k) {
+      for (int b = 0; b < k; b++) {
+        final double value = matrix[row1 * k + b];
+        matrix[row1 * k + b] = matrix[row2 * k + b];
+        matrix[row2 * k + b] = value;
+      }
+    }
+
+    /**
+     * Reads a closure written by write, whose states are already in the stateIndexer.
+     */
+    public UnaryClosure(DataInput in, Indexer<String> stateIndexer) throws IOException {
+      this.stateIndexer = stateIndexer;
+      final int numStates = stateIndexer.size();
+      closedRuleParents = ModelFormat.readInts(in);
+      closedRuleChildren = ModelFormat.readInts(in);
+      closedRuleScores = ModelFormat.readDoubles(in);
+      closedRulePaths = ModelFormat.readIntView(in);
+      closedRulePathOffsets = ModelFormat.readIntView(in);
+      closedRulesByParentOffsets = new int[numStates + 1];
+      Grammar.groupByKey(closedRuleParents, null, closedRulesByParentOffsets);
+      closedRulesByChildOffsets = new int[numStates + 1];
+      closedRulesByChild = Grammar.groupByKey(closedRuleChildren, closedRuleParents, closedRulesByChildOffsets);
+    }
+
+    /**
+     * Writes the compiled closed rules with their paths.
+     */
+    public void write(DataOutput out) throws IOException {
+      ModelFormat.writeInts(out, closedRuleParents);
+      ModelFormat.writeInts(out, closedRuleChildren);
+      ModelFormat.writeDoubles(out, closedRuleScores);
+      ModelFormat.writeInts(out, closedRulePaths);
+      ModelFormat.writeInts(out, closedRulePathOffsets);
+    }
+
+    /**
+     * Stores the closed rules of computeUnaryClosure and their paths in compiled form, grouped by parent.
+     */
+    private void compile(Map<UnaryRule, List<String>> closureMap) {
+      Map<String, List<UnaryRule>> closedUnaryRulesByParent = new HashMap<String, List<UnaryRule>>();
+      Set<String> states = new HashSet<String>();
+      for (UnaryRule unaryRule : closureMap.keySet()) {
+        CollectionUtils.addToValueList(closedUnaryRulesByParent, unaryRule.getParent(), unaryRule);
+        states.add(unaryRule.getParent());
+        states.add(unaryRule.getChild());
+      }
+      stateIndexer.addAll(CollectionUtils.sort(states));
+      final int numStates = stateIndexer.size();
+
+      List<UnaryRule> closedRules = new ArrayList<UnaryRule>();
+      closedRulesByParentOffsets = new int[numStates + 1];
+      for (int state = 0; state < numStates; state++) {
+        closedRulesByParentOffsets[state] = closedRules.size();
+        closedRules.addAll(CollectionUtils.getValueList(closedUnaryRulesByParent, stateIndexer.get(state)));
+      }
+      closedRulesByParentOffsets[numStates] = closedRules.size();
+      closedRuleParents = new int[closedRules.size()];
+      closedRuleChildren = new int[closedRules.size()];
+      closedRuleScores = new double[closedRules.size()];
+      for (int rule = 0; rule < closedRules.size(); rule++) {
+        UnaryRule unaryRule = closedRules.get(rule);
+        closedRuleParents[rule] = stateIndexer.indexOf(unaryRule.getParent());
+        closedRuleChildren[rule] = stateIndexer.indexOf(unaryRule.getChild());
+        closedRuleScores[rule] = unaryRule.getScore();
+      }
+      closedRulesByChildOffsets = new int[numStates + 1];
+      closedRulesByChild = Grammar.groupByKey(closedRuleChildren, closedRuleParents, closedRulesByChildOffsets);
+
+      int[] pathOffsets = new int[closedRules.size() + 1];
+      for (int rule = 0; rule < closedRules.size(); rule++) {
+        pathOffsets[rule + 1] = pathOffsets[rule] + closureMap.get(closedRules.get(rule)).size();
+      }
+      int[] paths = new int[pathOffsets[closedRules.size()]];
+      for (int rule = 0; rule < closedRules.size(); rule++) {
+        int k = pathOffsets[rule];
+        for (String state : closureMap.get(closedRules.get(rule))) {
+          paths[k++] = stateIndexer.indexOf(state);
+        }
+      }
+      closedRulePaths = IntBuffer.wrap(paths);
+      closedRulePathOffsets = IntBuffer.wrap(pathOffsets);
     }
 
     private static Map<UnaryRule, List<String>> computeUnaryClosure(Collection<UnaryRule> unaryRules) {
@@ -0,0 +1,115 @@
+package nlp.assignments.parsing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import nlp.ling.Tree;
+import nlp.util.CommandLineUtils;
+import nlp.util.Indexer;
+
+/**
+ * Times the unary closure of the grammar of the annotated training trees computed over UnaryRule objects, by
+ * UnaryClosure.computeUnaryClosure, against the matrix closure over state ids that the parser uses.  Both closures are
+ * checked to have the same rules with the same scores, and every path of the matrix closure to multiply out to its
+ * score.  Paths may differ where two paths have the same score.
+ */
+public class UnaryClosureBenchmark {
+
+    // Relative difference allowed between scores multiplied in a different order
+    static final double TOLERANCE = 1e-12;
+
+    public static void main(String[] args) {
+        Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+        String basePath = argMap.containsKey("-path") ? argMap.get("-path") : "data";
+        int maxTrainLength = argMap.containsKey("-maxTrainLength") ? Integer.parseInt(argMap.get("-maxTrainLength")) : 20;
+        int repetitions = argMap.containsKey("-repetitions") ? Integer.parseInt(argMap.get("-repetitions")) : 5;
+
+        TreeAnnotator annotator = new BaselineTreeAnnotations();
+        List<Tree<String>> annotatedTrainTrees = new ArrayList<Tree<String>>();
+        for (Tree<String> tree : PCFGParserTester.readTrees(basePath, 200, 2199, maxTrainLength)) {
+            annotatedTrainTrees.add(annotator.annotateTree(tree));
+        }
+        Grammar grammar = new Grammar(annotatedTrainTrees);
+        System.out.printf("%d unary rules over %d states%n", grammar.unaryRuleParents.length, grammar.getNumStates());
+
+        // the first round only warms up the JIT compiler
+        for (int round = 0; round <= repetitions; round++) {
+            long startTime = System.nanoTime();
+            UnaryClosure ruleClosure = new UnaryClosure(copyUnaryRules(grammar), new Indexer<String>(grammar.getStateIndexer()));
+            long ruleTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            UnaryClosure matrixClosure = new UnaryClosure(grammar);
+            long matrixTime = System.nanoTime() - startTime;
+
+            int numDifferentPaths = check(grammar, ruleClosure, matrixClosure);
+            if (round > 0) {
+                System.out.printf("round %d: %d closed rules, rule objects %.3f s, matrix %.3f s, speedup %.1f, "
+                        + "%d paths differ between ties%n", round, matrixClosure.closedRuleParents.length, ruleTime / 1e9,
+                        matrixTime / 1e9, (double) ruleTime / matrixTime, numDifferentPaths);
+            }
+        }
+    }
+
+    /**
+     * Returns fresh copies of the grammar's unary rules, since computeUnaryClosure overwrites the scores of the rules
+     * it is given with the scores of their closure.
+     */
+    private static List<UnaryRule> copyUnaryRules(Grammar grammar) {
+        Indexer<String> stateIndexer = grammar.getStateIndexer();
+        List<UnaryRule> unaryRules = new ArrayList<UnaryRule>();
+        for (int rule = 0; rule < grammar.unaryRuleParents.length; rule++) {
+            UnaryRule unaryRule = new UnaryRule(stateIndexer.get(grammar.unaryRuleParents[rule]),
+                    stateIndexer.get(grammar.unaryRuleChildren[rule]));
+            unaryRule.setScore(grammar.unaryRuleScores[rule]);
+            unaryRules.add(unaryRule);
+        }
+        return unaryRules;
+    }
+
+    /**
+     * Checks that both closures have the same rules and scores, and that the paths of the matrix closure are right,
+     * and returns the number of rules whose paths differ.
+     */
+    private static int check(Grammar grammar, UnaryClosure ruleClosure, UnaryClosure matrixClosure) {
+        if (ruleClosure.closedRuleParents.length != matrixClosure.closedRuleParents.length) {
+            throw new IllegalStateException("The closures have " + ruleClosure.closedRuleParents.length + " and "
+                    + matrixClosure.closedRuleParents.length + " rules");
+        }
+        Indexer<String> stateIndexer = grammar.getStateIndexer();
+        int numDifferentPaths = 0;
+        for (int rule = 0; rule < matrixClosure.closedRuleParents.length; rule++) {
+            final int parent = matrixClosure.closedRuleParents[rule];
+            final int child = matrixClosure.closedRuleChildren[rule];
+            final double score = matrixClosure.closedRuleScores[rule];
+            int match = -1;
+            for (int k = ruleClosure.closedRulesByParentOffsets[parent]; k < ruleClosure.closedRulesByParentOffsets[parent + 1]; k++) {
+                if (ruleClosure.closedRuleChildren[k] == child) {
+                    match = k;
+                }
+            }
+            if (match < 0 || !isClose(ruleClosure.closedRuleScores[match], score)) {
+                throw new IllegalStateException("The closures disagree on " + stateIndexer.get(parent) + " -> "
+                        + stateIndexer.get(child));
+            }
+
+            List<String> path = matrixClosure.getPath(rule);
+            double pathScore = 1.0;
+            for (int k = 0; k + 1 < path.size(); k++) {
+                pathScore *= grammar.getUnaryScore(stateIndexer.indexOf(path.get(k)), stateIndexer.indexOf(path.get(k + 1)));
+            }
+            if (!isClose(pathScore, score)) {
+                throw new IllegalStateException("The path " + path + " does not have the score of its rule");
+            }
+            if (!path.equals(ruleClosure.getPath(match))) {
+                numDifferentPaths++;
+            }
+        }
+        return numDifferentPaths;
+    }
+
+    private static boolean isClose(double score1, double score2) {
+        return Math.abs(score1 - score2) <= TOLERANCE * Math.max(score1, score2);
+    }
+}
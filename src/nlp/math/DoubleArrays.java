@@ -212,6 +212,14 @@ public class DoubleArrays {
 		return exponentiated;
 	}
 
+	public static double[] log(double[] x) {
+		double[] logs = new double[x.length];
+		for (int index = 0; index < x.length; index++) {
+			logs[index] = Math.log(x[index]);
+		}
+		return logs;
+	}
+
 	public static void truncate(double[] x, double maxVal) {
 		for (int index = 0; index < x.length; index++) {
 			if (x[index] > maxVal) 
@@ -19,6 +19,12 @@ public abstract class MapFactory<K,V> implements Serializable {
     }
   }
 
+  public static class LinkedHashMapFactory<K,V> extends MapFactory<K,V> {
+    public Map<K,V> buildMap() {
+      return new LinkedHashMap<K,V>();
+    }
+  }
+
   public static class IdentityHashMapFactory<K,V> extends MapFactory<K,V> {
     public Map<K,V> buildMap() {
       return new IdentityHashMap<K,V>();